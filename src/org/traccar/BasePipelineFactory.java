@@ -39,11 +39,21 @@ import org.traccar.events.AlertEventHandler;
 import org.traccar.helper.Log;
 
 import java.net.InetSocketAddress;
+import java.util.List;
 
 public abstract class BasePipelineFactory implements ChannelPipelineFactory {
 
-    private final TrackerServer server;
-    private int timeout;
+    private IdleStateHandler idleHandler;
+    private final OpenChannelHandler openHandler;
+    private DatagramAdmissionHandler admissionHandler;
+    private final String protocol;
+    private int datagramWorkers;
+    private DatagramExecutionHandler datagramExecutionHandler;
+    private StandardLoggingHandler loggingHandler;
+    private final RemoteAddressHandler remoteAddressHandler;
+    private DefaultDataHandler dataHandler;
+    private WebDataHandler webDataHandler;
+    private final MainEventHandler mainEventHandler;
 
     private FilterHandler filterHandler;
     private CoordinatesHandler coordinatesHandler;
@@ -61,6 +71,7 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
     private IgnitionEventHandler ignitionEventHandler;
     private MaintenanceEventHandler maintenanceEventHandler;
 
+    @ChannelHandler.Sharable
     private static final class OpenChannelHandler extends SimpleChannelHandler {
 
         private final TrackerServer server;
@@ -75,6 +86,24 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
         }
     }
 
+    @ChannelHandler.Sharable
+    private static final class DatagramAdmissionHandler extends SimpleChannelHandler {
+
+        private final OrderedExecutionHandler executionHandler;
+
+        private DatagramAdmissionHandler(OrderedExecutionHandler executionHandler) {
+            this.executionHandler = executionHandler;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+            if (executionHandler.acceptDatagram()) {
+                ctx.sendUpstream(e);
+            }
+        }
+    }
+
+    @ChannelHandler.Sharable
     private static class StandardLoggingHandler extends LoggingHandler {
 
         @Override
@@ -110,13 +139,43 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
     }
 
     public BasePipelineFactory(TrackerServer server, String protocol) {
-        this.server = server;
+        this.protocol = protocol;
 
-        timeout = Context.getConfig().getInteger(protocol + ".timeout", 0);
+        int timeout = Context.getConfig().getInteger(protocol + ".timeout", 0);
         if (timeout == 0) {
             timeout = Context.getConfig().getInteger(protocol + ".resetDelay", 0); // temporary
         }
 
+        if (timeout > 0 && !server.isConnectionless()) {
+            idleHandler = new IdleStateHandler(GlobalTimer.getTimer(), timeout, 0, 0);
+        }
+
+        openHandler = new OpenChannelHandler(server);
+
+        if (server.isConnectionless() && Context.getExecutionHandler() != null) {
+            admissionHandler = new DatagramAdmissionHandler(Context.getExecutionHandler());
+        }
+
+        if (server.isConnectionless()) {
+            datagramWorkers = Context.getConfig().getInteger(protocol + ".workers");
+        }
+
+        if (Context.isLoggerEnabled()) {
+            loggingHandler = new StandardLoggingHandler();
+        }
+
+        remoteAddressHandler = new RemoteAddressHandler();
+
+        if (Context.getDataManager() != null) {
+            dataHandler = new DefaultDataHandler();
+        }
+
+        if (Context.getConfig().getBoolean("forward.enable")) {
+            webDataHandler = new WebDataHandler(Context.getConfig().getString("forward.url"));
+        }
+
+        mainEventHandler = new MainEventHandler();
+
         if (Context.getConfig().getBoolean("filter.enable")) {
             filterHandler = new FilterHandler();
         }
@@ -178,15 +237,27 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
     @Override
     public ChannelPipeline getPipeline() {
         ChannelPipeline pipeline = Channels.pipeline();
-        if (timeout > 0 && !server.isConnectionless()) {
-            pipeline.addLast("idleHandler", new IdleStateHandler(GlobalTimer.getTimer(), timeout, 0, 0));
+        if (idleHandler != null) {
+            pipeline.addLast("idleHandler", idleHandler);
         }
-        pipeline.addLast("openHandler", new OpenChannelHandler(server));
-        if (Context.isLoggerEnabled()) {
-            pipeline.addLast("logger", new StandardLoggingHandler());
+        pipeline.addLast("openHandler", openHandler);
+        if (admissionHandler != null) {
+            pipeline.addLast("admissionHandler", admissionHandler);
+        }
+        if (loggingHandler != null) {
+            pipeline.addLast("logger", loggingHandler);
         }
 
+        int specificIndex = pipeline.getNames().size();
         addSpecificHandlers(pipeline);
+        if (datagramWorkers > 0) {
+            List<String> names = pipeline.getNames();
+            addDatagramExecutionHandler(pipeline, names.subList(specificIndex, names.size()));
+        }
+
+        if (Context.getExecutionHandler() != null) {
+            pipeline.addLast("executionHandler", Context.getExecutionHandler());
+        }
 
         if (hemisphereHandler != null) {
             pipeline.addLast("hemisphere", hemisphereHandler);
@@ -197,7 +268,7 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
         if (geolocationHandler != null) {
             pipeline.addLast("location", geolocationHandler);
         }
-        pipeline.addLast("remoteAddress", new RemoteAddressHandler());
+        pipeline.addLast("remoteAddress", remoteAddressHandler);
 
         addDynamicHandlers(pipeline);
 
@@ -217,12 +288,12 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
             pipeline.addLast("copyAttributes", copyAttributesHandler);
         }
 
-        if (Context.getDataManager() != null) {
-            pipeline.addLast("dataHandler", new DefaultDataHandler());
+        if (dataHandler != null) {
+            pipeline.addLast("dataHandler", dataHandler);
         }
 
-        if (Context.getConfig().getBoolean("forward.enable")) {
-            pipeline.addLast("webHandler", new WebDataHandler(Context.getConfig().getString("forward.url")));
+        if (webDataHandler != null) {
+            pipeline.addLast("webHandler", webDataHandler);
         }
 
         if (commandResultEventHandler != null) {
@@ -253,10 +324,31 @@ public abstract class BasePipelineFactory implements ChannelPipelineFactory {
             pipeline.addLast("MaintenanceEventHandler", maintenanceEventHandler);
         }
 
-        pipeline.addLast("mainHandler", new MainEventHandler());
+        pipeline.addLast("mainHandler", mainEventHandler);
         return pipeline;
     }
 
+    private void addDatagramExecutionHandler(ChannelPipeline pipeline, List<String> specificNames) {
+        if (specificNames.isEmpty()) {
+            return;
+        }
+        for (String name : specificNames) {
+            ChannelHandler handler = pipeline.get(name);
+            if (!DatagramExecutionHandler.isStateless(handler)) {
+                Log.warning("Ignoring " + protocol + ".workers, " + handler.getClass().getSimpleName()
+                        + " keeps state between datagrams");
+                datagramWorkers = 0;
+                return;
+            }
+        }
+        if (datagramExecutionHandler == null) {
+            datagramExecutionHandler = new DatagramExecutionHandler(protocol, datagramWorkers,
+                    Context.getConfig().getInteger(
+                            "processing.executor.queueSize", OrderedExecutionHandler.DEFAULT_QUEUE_SIZE));
+        }
+        pipeline.addBefore(specificNames.get(0), "datagramExecutionHandler", datagramExecutionHandler);
+    }
+
     private void addDynamicHandlers(ChannelPipeline pipeline) {
         if (Context.getConfig().hasKey("extra.handlers")) {
             String[] handlers = Context.getConfig().getString("extra.handlers").split(",");
@@ -15,8 +15,10 @@
  */
 package org.traccar;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.socket.DatagramChannel;
+import org.traccar.helper.ExpiringCache;
 import org.traccar.helper.Log;
 import org.traccar.model.Device;
 import org.traccar.model.Position;
@@ -25,12 +27,19 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 import java.sql.SQLException;
 
 public abstract class BaseProtocolDecoder extends ExtendedObjectDecoder {
 
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1000000;
+    public static final long DEFAULT_SESSION_CACHE_TIMEOUT = 3600;
+
+    private static final ExpiringCache.Metrics SESSION_CACHE_METRICS = new ExpiringCache.Metrics();
+
+    public static ExpiringCache.Metrics getSessionCacheMetrics() {
+        return SESSION_CACHE_METRICS;
+    }
+
     private final Protocol protocol;
 
     public long addUnknownDevice(String uniqueId) {
@@ -59,7 +68,22 @@ public abstract class BaseProtocolDecoder extends ExtendedObjectDecoder {
     }
 
     private DeviceSession channelDeviceSession; // connection-based protocols
-    private Map<SocketAddress, DeviceSession> addressDeviceSessions = new HashMap<>(); // connectionless protocols
+    private volatile ExpiringCache<SocketAddress, DeviceSession> addressDeviceSessions; // connectionless protocols
+
+    private ExpiringCache<SocketAddress, DeviceSession> getAddressDeviceSessions() {
+        if (addressDeviceSessions == null) {
+            synchronized (this) {
+                if (addressDeviceSessions == null) {
+                    addressDeviceSessions = new ExpiringCache<>(
+                            Context.getConfig().getInteger("decoder.sessionCacheSize", DEFAULT_SESSION_CACHE_SIZE),
+                            Context.getConfig().getLong(
+                                    "decoder.sessionCacheTimeout", DEFAULT_SESSION_CACHE_TIMEOUT) * 1000,
+                            SESSION_CACHE_METRICS);
+                }
+            }
+        }
+        return addressDeviceSessions;
+    }
 
     private long findDeviceId(SocketAddress remoteAddress, String... uniqueIds) {
         long deviceId = 0;
@@ -82,12 +106,20 @@ public abstract class BaseProtocolDecoder extends ExtendedObjectDecoder {
                     return addUnknownDevice(uniqueIds[0]);
                 }
 
+                String host = null;
+                if (remoteAddress != null) {
+                    host = ((InetSocketAddress) remoteAddress).getHostString();
+                }
+                if (Context.getStatisticsManager() != null) {
+                    Context.getStatisticsManager().registerUnknownDevice(getProtocolName(), host);
+                }
+
                 StringBuilder message = new StringBuilder("Unknown device -");
                 for (String uniqueId : uniqueIds) {
                     message.append(" ").append(uniqueId);
                 }
-                if (remoteAddress != null) {
-                    message.append(" (").append(((InetSocketAddress) remoteAddress).getHostString()).append(")");
+                if (host != null) {
+                    message.append(" (").append(host).append(")");
                 }
                 Log.warning(message.toString());
             }
@@ -109,12 +141,13 @@ public abstract class BaseProtocolDecoder extends ExtendedObjectDecoder {
         }
         if (channel instanceof DatagramChannel) {
             long deviceId = findDeviceId(remoteAddress, uniqueIds);
-            DeviceSession deviceSession = addressDeviceSessions.get(remoteAddress);
+            ExpiringCache<SocketAddress, DeviceSession> sessions = getAddressDeviceSessions();
+            DeviceSession deviceSession = sessions.get(remoteAddress);
             if (deviceSession != null && (deviceSession.getDeviceId() == deviceId || uniqueIds.length == 0)) {
                 return deviceSession;
             } else if (deviceId != 0) {
                 deviceSession = new DeviceSession(deviceId);
-                addressDeviceSessions.put(remoteAddress, deviceSession);
+                sessions.put(remoteAddress, deviceSession);
                 if (Context.getConnectionManager() != null) {
                     Context.getConnectionManager().addActiveDevice(deviceId, protocol, channel, remoteAddress);
                 }
@@ -136,6 +169,13 @@ public abstract class BaseProtocolDecoder extends ExtendedObjectDecoder {
         }
     }
 
+    /**
+     * Allocates a response buffer from the buffer factory configured for the channel.
+     */
+    protected static ChannelBuffer createBuffer(Channel channel, int capacity) {
+        return channel.getConfig().getBufferFactory().getBuffer(capacity);
+    }
+
     public BaseProtocolDecoder(Protocol protocol) {
         this.protocol = protocol;
     }
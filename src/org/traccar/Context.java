@@ -19,6 +19,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.ning.http.client.AsyncHttpClient;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.util.Properties;
 
@@ -33,6 +34,8 @@ import org.traccar.database.IdentityManager;
 import org.traccar.database.NotificationManager;
 import org.traccar.database.PermissionsManager;
 import org.traccar.database.GeofenceManager;
+import org.traccar.database.PositionRetentionTask;
+import org.traccar.database.PositionSpool;
 import org.traccar.database.StatisticsManager;
 import org.traccar.geocoder.BingMapsGeocoder;
 import org.traccar.geocoder.FactualGeocoder;
@@ -176,7 +179,72 @@ public final class Context {
         return statisticsManager;
     }
 
-    public static void init(String[] arguments) throws Exception {
+    private static PositionSpool positionSpool;
+
+    public static PositionSpool getPositionSpool() {
+        return positionSpool;
+    }
+
+    private static PositionRetentionTask positionRetentionTask;
+
+    public static PositionRetentionTask getPositionRetentionTask() {
+        return positionRetentionTask;
+    }
+
+    private static OrderedExecutionHandler executionHandler;
+
+    public static OrderedExecutionHandler getExecutionHandler() {
+        return executionHandler;
+    }
+
+    private static Geocoder createGeocoder() {
+        String type = config.getString("geocoder.type", "google");
+        String url = config.getString("geocoder.url");
+        String key = config.getString("geocoder.key");
+
+        int cacheSize = config.getInteger("geocoder.cacheSize");
+        Geocoder geocoder;
+        switch (type) {
+            case "nominatim":
+                if (key != null) {
+                    geocoder = new NominatimGeocoder(url, key, cacheSize);
+                } else {
+                    geocoder = new NominatimGeocoder(url, cacheSize);
+                }
+                break;
+            case "gisgraphy":
+                geocoder = new GisgraphyGeocoder(url, cacheSize);
+                break;
+            case "mapquest":
+                geocoder = new MapQuestGeocoder(url, key, cacheSize);
+                break;
+            case "opencage":
+                geocoder = new OpenCageGeocoder(url, key, cacheSize);
+                break;
+            case "bingmaps":
+                geocoder = new BingMapsGeocoder(url, key, cacheSize);
+                break;
+            case "factual":
+                geocoder = new FactualGeocoder(url, key, cacheSize);
+                break;
+            case "geocodefarm":
+                if (key != null) {
+                    geocoder = new GeocodeFarmGeocoder(key, cacheSize);
+                } else {
+                    geocoder = new GeocodeFarmGeocoder(cacheSize);
+                }
+            default:
+                if (key != null) {
+                    geocoder = new GoogleGeocoder(key, cacheSize);
+                } else {
+                    geocoder = new GoogleGeocoder(cacheSize);
+                }
+                break;
+        }
+        return geocoder;
+    }
+
+    public static void initDatabase(String[] arguments) throws Exception {
 
         config = new Config();
         if (arguments.length <= 0) {
@@ -198,6 +266,25 @@ public final class Context {
             dataManager = new DataManager(config);
         }
 
+    }
+
+    public static void init(String[] arguments) throws Exception {
+
+        initDatabase(arguments);
+
+        if (dataManager != null) {
+            dataManager.initWriters();
+        }
+
+        if (config.getBoolean("spool.enable")) {
+            positionSpool = new PositionSpool(dataManager, new File(config.getString("spool.path", "data/spool")),
+                    config.getInteger("spool.segmentSize", PositionSpool.DEFAULT_SEGMENT_SIZE),
+                    config.getLong("spool.maxSize", PositionSpool.DEFAULT_MAX_SIZE),
+                    config.getLong("spool.latency", PositionSpool.DEFAULT_LATENCY),
+                    config.getInteger("spool.batchSize", PositionSpool.DEFAULT_BATCH_SIZE),
+                    config.getLong("spool.retryDelay", PositionSpool.DEFAULT_RETRY_DELAY));
+        }
+
         if (dataManager != null) {
             deviceManager = new DeviceManager(dataManager);
         }
@@ -205,48 +292,7 @@ public final class Context {
         identityManager = deviceManager;
 
         if (config.getBoolean("geocoder.enable")) {
-            String type = config.getString("geocoder.type", "google");
-            String url = config.getString("geocoder.url");
-            String key = config.getString("geocoder.key");
-
-            int cacheSize = config.getInteger("geocoder.cacheSize");
-            switch (type) {
-                case "nominatim":
-                    if (key != null) {
-                        geocoder = new NominatimGeocoder(url, key, cacheSize);
-                    } else {
-                        geocoder = new NominatimGeocoder(url, cacheSize);
-                    }
-                    break;
-                case "gisgraphy":
-                    geocoder = new GisgraphyGeocoder(url, cacheSize);
-                    break;
-                case "mapquest":
-                    geocoder = new MapQuestGeocoder(url, key, cacheSize);
-                    break;
-                case "opencage":
-                    geocoder = new OpenCageGeocoder(url, key, cacheSize);
-                    break;
-                case "bingmaps":
-                    geocoder = new BingMapsGeocoder(url, key, cacheSize);
-                    break;
-                case "factual":
-                    geocoder = new FactualGeocoder(url, key, cacheSize);
-                    break;
-                case "geocodefarm":
-                    if (key != null) {
-                        geocoder = new GeocodeFarmGeocoder(key, cacheSize);
-                    } else {
-                        geocoder = new GeocodeFarmGeocoder(cacheSize);
-                    }
-                default:
-                    if (key != null) {
-                        geocoder = new GoogleGeocoder(key, cacheSize);
-                    } else {
-                        geocoder = new GoogleGeocoder(cacheSize);
-                    }
-                    break;
-            }
+            geocoder = createGeocoder();
         }
 
         if (config.getBoolean("geolocation.enable")) {
@@ -301,6 +347,10 @@ public final class Context {
             velocityEngine.init(velocityProperties);
         }
 
+        if (config.getBoolean("processing.executor.enable")) {
+            executionHandler = new OrderedExecutionHandler();
+        }
+
         serverManager = new ServerManager();
 
         if (config.getBoolean("event.forward.enable")) {
@@ -311,6 +361,8 @@ public final class Context {
 
         statisticsManager = new StatisticsManager();
 
+        positionRetentionTask = new PositionRetentionTask(dataManager);
+
     }
 
     public static void init(IdentityManager testIdentityManager) {
@@ -319,4 +371,8 @@ public final class Context {
         identityManager = testIdentityManager;
     }
 
+    public static void init(DeviceManager testDeviceManager) {
+        deviceManager = testDeviceManager;
+    }
+
 }
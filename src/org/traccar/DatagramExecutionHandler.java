@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Spreads decoding of a UDP port over several threads. The receiving thread only hands datagrams over, and datagrams
+ * from one remote address are always decoded by the same worker, so messages of a device keep their order.
+ *
+ * <p>All workers share the handlers of the pipeline, so the stage is only used when every upstream handler after it
+ * is stateless, see {@link #isStateless(ChannelHandler)}.</p>
+ */
+@ChannelHandler.Sharable
+public class DatagramExecutionHandler extends OrderedExecutionHandler {
+
+    private static final Collection<DatagramExecutionHandler> HANDLERS = new CopyOnWriteArrayList<>();
+
+    public static Collection<DatagramExecutionHandler> getHandlers() {
+        return Collections.unmodifiableCollection(HANDLERS);
+    }
+
+    private final String protocol;
+
+    public DatagramExecutionHandler(String protocol, int threads, int queueSize) {
+        super(protocol + "-udp", threads, queueSize);
+        this.protocol = protocol;
+        HANDLERS.add(this);
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Handlers marked as sharable keep no channel state. Protocol decoders count as stateless when they declare no
+     * instance fields, the device sessions of the base decoder are thread safe.
+     */
+    public static boolean isStateless(ChannelHandler handler) {
+        if (!(handler instanceof ChannelUpstreamHandler)
+                || handler.getClass().isAnnotationPresent(ChannelHandler.Sharable.class)) {
+            return true;
+        }
+        if (!(handler instanceof BaseProtocolDecoder)) {
+            return false;
+        }
+        for (Class<?> clazz = handler.getClass(); clazz != BaseProtocolDecoder.class; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected long getKey(ChannelHandlerContext ctx, ChannelEvent e) {
+        if (e instanceof MessageEvent && ((MessageEvent) e).getRemoteAddress() != null) {
+            return ((MessageEvent) e).getRemoteAddress().hashCode();
+        }
+        return e.getChannel().getId();
+    }
+
+}
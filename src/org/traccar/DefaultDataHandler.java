@@ -15,18 +15,35 @@
  */
 package org.traccar;
 
+import org.jboss.netty.channel.ChannelHandler;
+import org.traccar.database.PositionSpool;
 import org.traccar.helper.Log;
 import org.traccar.model.Position;
 
+@ChannelHandler.Sharable
 public class DefaultDataHandler extends BaseDataHandler {
 
     @Override
     protected Position handlePosition(Position position) {
 
+        PositionSpool spool = Context.getPositionSpool();
+        if (spool != null && spool.isActive()) {
+            spool.addPosition(position);
+            return position;
+        }
+
+        long startTime = System.currentTimeMillis();
         try {
             Context.getDataManager().addPosition(position);
+            if (spool != null) {
+                spool.checkLatency(System.currentTimeMillis() - startTime);
+            }
         } catch (Exception error) {
             Log.warning(error);
+            // a position that already has an id only failed its stampings, the spool writes just those
+            if (spool != null) {
+                spool.addPosition(position);
+            }
         }
 
         return position;
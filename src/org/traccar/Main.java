@@ -17,14 +17,13 @@ package org.traccar;
 
 import org.traccar.helper.Log;
 
-import java.sql.SQLException;
 import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Locale;
 
 public final class Main {
 
     private static final long CLEAN_PERIOD = 24 * 60 * 60 * 1000;
+    private static final long SHUTDOWN_TIMEOUT = 10 * 1000;
 
     private Main() {
     }
@@ -40,16 +39,7 @@ public final class Main {
             Context.getWebServer().start();
         }
 
-        new Timer().scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    Context.getDataManager().clearPositionsHistory();
-                } catch (SQLException error) {
-                    Log.warning(error);
-                }
-            }
-        }, 0, CLEAN_PERIOD);
+        new Timer().scheduleAtFixedRate(Context.getPositionRetentionTask(), 0, CLEAN_PERIOD);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -60,6 +50,14 @@ public final class Main {
                     Context.getWebServer().stop();
                 }
                 Context.getServerManager().stop();
+                if (Context.getExecutionHandler() != null) {
+                    try {
+                        Context.getExecutionHandler().drain(SHUTDOWN_TIMEOUT);
+                    } catch (InterruptedException error) {
+                        Log.warning(error);
+                    }
+                }
+                Context.getDataManager().flush();
             }
         });
     }
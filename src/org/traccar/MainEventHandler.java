@@ -16,6 +16,7 @@
 package org.traccar;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -32,6 +33,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+@ChannelHandler.Sharable
 public class MainEventHandler extends IdleStateAwareChannelHandler {
 
     private final Set<String> connectionlessProtocols = new HashSet<>();
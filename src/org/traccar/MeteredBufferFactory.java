@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer factory selected per protocol with the {@code <protocol>.bufferType} option. Direct buffers are sliced from
+ * preallocated chunks of {@code <protocol>.bufferChunkSize} bytes instead of allocating native memory for every
+ * frame; a chunk is released once all buffers sliced from it are collected. Allocations of all protocols using this
+ * factory are counted.
+ */
+public class MeteredBufferFactory implements ChannelBufferFactory {
+
+    public static final String TYPE_HEAP = "heap";
+    public static final String TYPE_DIRECT = "direct";
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final AtomicLong ALLOCATIONS = new AtomicLong();
+    private static final AtomicLong ALLOCATED_BYTES = new AtomicLong();
+
+    private final ChannelBufferFactory bufferFactory;
+
+    public MeteredBufferFactory(String type, ByteOrder byteOrder, int chunkSize) {
+        if (TYPE_DIRECT.equals(type)) {
+            bufferFactory = new DirectChannelBufferFactory(byteOrder, chunkSize);
+        } else {
+            bufferFactory = new HeapChannelBufferFactory(byteOrder);
+        }
+    }
+
+    public static long getAllocations() {
+        return ALLOCATIONS.get();
+    }
+
+    public static long getAllocatedBytes() {
+        return ALLOCATED_BYTES.get();
+    }
+
+    public static void resetMetrics() {
+        ALLOCATIONS.set(0);
+        ALLOCATED_BYTES.set(0);
+    }
+
+    private static ChannelBuffer record(ChannelBuffer buffer) {
+        ALLOCATIONS.incrementAndGet();
+        ALLOCATED_BYTES.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(int capacity) {
+        return record(bufferFactory.getBuffer(capacity));
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder endianness, int capacity) {
+        return record(bufferFactory.getBuffer(endianness, capacity));
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(byte[] array, int offset, int length) {
+        return record(bufferFactory.getBuffer(array, offset, length));
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteOrder endianness, byte[] array, int offset, int length) {
+        return record(bufferFactory.getBuffer(endianness, array, offset, length));
+    }
+
+    @Override
+    public ChannelBuffer getBuffer(ByteBuffer nioBuffer) {
+        return record(bufferFactory.getBuffer(nioBuffer));
+    }
+
+    @Override
+    public ByteOrder getDefaultOrder() {
+        return bufferFactory.getDefaultOrder();
+    }
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.DatagramChannel;
+import org.traccar.helper.Log;
+import org.traccar.model.Position;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves processing of decoded messages off the I/O threads. Events are assigned to a fixed set of worker threads by
+ * device id, so positions of one device are handled in order while other devices proceed in parallel. Events without
+ * a position go to the worker of the last device seen on the channel.
+ *
+ * <p>Once the number of queued events reaches the high watermark, TCP channels that deliver more messages stop
+ * reading until the queues drain below the low watermark, and datagrams of UDP servers are dropped before decoding.
+ * Devices resend data that was not acknowledged, so this only delays processing. If a single worker queue fills up,
+ * the I/O thread waits for it.</p>
+ */
+@ChannelHandler.Sharable
+public class OrderedExecutionHandler implements ChannelUpstreamHandler {
+
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final class Task {
+
+        private final ChannelHandlerContext context;
+        private final ChannelEvent event;
+        private final long time = System.nanoTime();
+
+        private Task(ChannelHandlerContext context, ChannelEvent event) {
+            this.context = context;
+            this.event = event;
+        }
+
+    }
+
+    private final class Worker extends Thread {
+
+        private final BlockingQueue<Task> queue;
+
+        private Worker(String name, int queueSize) {
+            super(name);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException error) {
+                    return;
+                }
+                long startTime = System.nanoTime();
+                try {
+                    task.context.sendUpstream(task.event);
+                } catch (RuntimeException error) {
+                    Log.warning(error);
+                }
+                record(task.time, startTime, System.nanoTime());
+                if (queued.decrementAndGet() <= lowWatermark && !pausedChannels.isEmpty()) {
+                    resumeChannels();
+                }
+            }
+        }
+
+    }
+
+    private final Worker[] workers;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ConcurrentMap<Integer, Channel> pausedChannels = new ConcurrentHashMap<>();
+    private final AtomicLong paused = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+    private final AtomicLong processTime = new AtomicLong();
+    private final AtomicLong maxProcessTime = new AtomicLong();
+
+    public OrderedExecutionHandler() {
+        int threads = Context.getConfig().getInteger(
+                "processing.executor.threads", Runtime.getRuntime().availableProcessors() * 2);
+        int queueSize = Context.getConfig().getInteger("processing.executor.queueSize", DEFAULT_QUEUE_SIZE);
+        highWatermark = Context.getConfig().getInteger(
+                "processing.executor.highWatermark", threads * queueSize * 3 / 4);
+        lowWatermark = Context.getConfig().getInteger("processing.executor.lowWatermark", highWatermark / 2);
+        workers = startWorkers("execution", threads, queueSize);
+    }
+
+    /**
+     * Creates a stage without watermarks, so only full worker queues hold back the I/O thread.
+     */
+    protected OrderedExecutionHandler(String name, int threads, int queueSize) {
+        highWatermark = Integer.MAX_VALUE;
+        lowWatermark = 0;
+        workers = startWorkers(name, threads, queueSize);
+    }
+
+    private Worker[] startWorkers(String name, int threads, int queueSize) {
+        Worker[] result = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            result[i] = new Worker(name + "-" + i, queueSize);
+            result[i].start();
+        }
+        return result;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private void record(long queueTime, long startTime, long endTime) {
+        processed.incrementAndGet();
+        waitTime.addAndGet(startTime - queueTime);
+        updateMax(maxWaitTime, startTime - queueTime);
+        processTime.addAndGet(endTime - startTime);
+        updateMax(maxProcessTime, endTime - startTime);
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.queue.size();
+        }
+        return size;
+    }
+
+    public int getMaxQueueSize() {
+        int size = 0;
+        for (Worker worker : workers) {
+            size = Math.max(size, worker.queue.size());
+        }
+        return size;
+    }
+
+    public int getPausedChannels() {
+        return pausedChannels.size();
+    }
+
+    public long getPaused() {
+        return paused.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+    }
+
+    public long getProcessTime() {
+        return TimeUnit.NANOSECONDS.toMillis(processTime.get());
+    }
+
+    public long getMaxProcessTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxProcessTime.get());
+    }
+
+    public void resetMetrics() {
+        paused.set(0);
+        dropped.set(0);
+        processed.set(0);
+        waitTime.set(0);
+        maxWaitTime.set(0);
+        processTime.set(0);
+        maxProcessTime.set(0);
+    }
+
+    /**
+     * Returns the value that selects the worker, events with the same key are handled in order.
+     */
+    protected long getKey(ChannelHandlerContext ctx, ChannelEvent e) {
+        if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof Position) {
+            long deviceId = ((Position) ((MessageEvent) e).getMessage()).getDeviceId();
+            if (deviceId != 0) {
+                ctx.setAttachment(deviceId);
+                return deviceId;
+            }
+        }
+        Object attachment = ctx.getAttachment();
+        if (attachment != null) {
+            return (Long) attachment;
+        }
+        return e.getChannel().getId();
+    }
+
+    /**
+     * Checks whether a datagram can be accepted. Datagrams are dropped before decoding while the queues are above the
+     * high watermark, so devices do not get an acknowledgement and send the data again.
+     */
+    public boolean acceptDatagram() {
+        if (queued.get() >= highWatermark) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void resumeChannels() {
+        for (Channel channel : pausedChannels.values()) {
+            if (pausedChannels.remove(channel.getId(), channel)) {
+                channel.setReadable(true);
+            }
+        }
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        Channel channel = e.getChannel();
+        if (e instanceof MessageEvent && queued.get() >= highWatermark && !(channel instanceof DatagramChannel)) {
+            if (pausedChannels.putIfAbsent(channel.getId(), channel) == null) {
+                paused.incrementAndGet();
+                channel.setReadable(false);
+            }
+        }
+
+        long key = getKey(ctx, e);
+        int hash = (int) (key ^ (key >>> 32));
+        Worker worker = workers[(hash & Integer.MAX_VALUE) % workers.length];
+        queued.incrementAndGet();
+        try {
+            worker.queue.put(new Task(ctx, e));
+        } catch (InterruptedException error) {
+            queued.decrementAndGet();
+            throw error;
+        }
+    }
+
+    /**
+     * Waits until queued events are processed.
+     */
+    public void drain(long timeout) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + timeout;
+        while (getQueueSize() > 0 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -16,11 +16,13 @@
 package org.traccar;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
 import org.traccar.model.Position;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 
+@ChannelHandler.Sharable
 public class RemoteAddressHandler extends ExtendedObjectDecoder {
 
     @Override
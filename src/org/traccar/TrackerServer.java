@@ -18,6 +18,7 @@ package org.traccar;
 import org.jboss.netty.bootstrap.Bootstrap;
 import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.HeapChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -36,6 +37,8 @@ public abstract class TrackerServer {
 
     private final Bootstrap bootstrap;
     private final String protocol;
+    private final String bufferType;
+    private final int bufferChunkSize;
 
     public boolean isConnectionless() {
         return bootstrap instanceof ConnectionlessBootstrap;
@@ -59,6 +62,13 @@ public abstract class TrackerServer {
         address = Context.getConfig().getString(protocol + ".address");
         port = Context.getConfig().getInteger(protocol + ".port");
 
+        bufferType = Context.getConfig().getString(protocol + ".bufferType");
+        bufferChunkSize = Context.getConfig().getInteger(
+                protocol + ".bufferChunkSize", MeteredBufferFactory.DEFAULT_CHUNK_SIZE);
+        if (bufferType != null) {
+            setEndianness(ByteOrder.BIG_ENDIAN);
+        }
+
         bootstrap.setPipelineFactory(new BasePipelineFactory(this, protocol) {
             @Override
             protected void addSpecificHandlers(ChannelPipeline pipeline) {
@@ -99,8 +109,14 @@ public abstract class TrackerServer {
      * Set endianness
      */
     public void setEndianness(ByteOrder byteOrder) {
-        bootstrap.setOption("bufferFactory", new HeapChannelBufferFactory(byteOrder));
-        bootstrap.setOption("child.bufferFactory", new HeapChannelBufferFactory(byteOrder));
+        ChannelBufferFactory bufferFactory;
+        if (bufferType != null) {
+            bufferFactory = new MeteredBufferFactory(bufferType, byteOrder, bufferChunkSize);
+        } else {
+            bufferFactory = new HeapChannelBufferFactory(byteOrder);
+        }
+        bootstrap.setOption("bufferFactory", bufferFactory);
+        bootstrap.setOption("child.bufferFactory", bufferFactory);
     }
 
     /**
@@ -16,6 +16,7 @@
 package org.traccar;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import org.jboss.netty.channel.ChannelHandler;
 import org.traccar.helper.Checksum;
 import org.traccar.helper.Log;
 import org.traccar.model.Device;
@@ -29,6 +30,7 @@ import java.util.Formatter;
 import java.util.Locale;
 import java.util.TimeZone;
 
+@ChannelHandler.Sharable
 public class WebDataHandler extends BaseDataHandler {
 
     private final String url;
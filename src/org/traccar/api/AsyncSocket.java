@@ -18,6 +18,7 @@ package org.traccar.api;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.traccar.Context;
 import org.traccar.database.ConnectionManager;
 import org.traccar.helper.Log;
@@ -25,32 +26,64 @@ import org.traccar.model.Device;
 import org.traccar.model.Event;
 import org.traccar.model.Position;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Collects updates for a session until the next flush, keeping only the latest state of each device. While a frame
+ * is still being written to a slow client, updates keep being merged instead of queued, and only the newest events
+ * are kept.
+ */
 public class AsyncSocket extends WebSocketAdapter implements ConnectionManager.UpdateListener {
 
     private static final String KEY_DEVICES = "devices";
     private static final String KEY_POSITIONS = "positions";
     private static final String KEY_EVENTS = "events";
 
+    private static final int MAX_PENDING_EVENTS = 100;
+
     private long userId;
+    private final AsyncSocketFlusher flusher;
+
+    private final Map<Long, Device> pendingDevices = new LinkedHashMap<>();
+    private final Map<Long, Position> pendingPositions = new LinkedHashMap<>();
+    private final Deque<Event> pendingEvents = new ArrayDeque<>();
+    private boolean sending;
 
-    public AsyncSocket(long userId) {
+    private final WriteCallback writeCallback = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable error) {
+            Log.warning(error);
+            completeSend();
+        }
+
+        @Override
+        public void writeSuccess() {
+            completeSend();
+        }
+    };
+
+    public AsyncSocket(long userId, AsyncSocketFlusher flusher) {
         this.userId = userId;
+        this.flusher = flusher;
     }
 
     @Override
     public void onWebSocketConnect(Session session) {
         super.onWebSocketConnect(session);
 
-        Map<String, Collection<?>> data = new HashMap<>();
-        data.put(KEY_POSITIONS, Context.getDeviceManager().getInitialState(userId));
-        sendData(data);
+        synchronized (this) {
+            for (Position position : Context.getDeviceManager().getInitialState(userId)) {
+                pendingPositions.put(position.getDeviceId(), position);
+            }
+        }
 
         Context.getConnectionManager().addListener(userId, this);
+        flusher.addSocket(this);
     }
 
     @Override
@@ -58,36 +91,91 @@ public class AsyncSocket extends WebSocketAdapter implements ConnectionManager.U
         super.onWebSocketClose(statusCode, reason);
 
         Context.getConnectionManager().removeListener(userId, this);
+        flusher.removeSocket(this);
     }
 
     @Override
-    public void onUpdateDevice(Device device) {
-        Map<String, Collection<?>> data = new HashMap<>();
-        data.put(KEY_DEVICES, Collections.singletonList(device));
-        sendData(data);
+    public synchronized void onUpdateDevice(Device device) {
+        pendingDevices.put(device.getId(), device);
     }
 
     @Override
-    public void onUpdatePosition(Position position) {
-        Map<String, Collection<?>> data = new HashMap<>();
-        data.put(KEY_POSITIONS, Collections.singletonList(position));
-        sendData(data);
+    public synchronized void onUpdatePosition(Position position) {
+        pendingPositions.put(position.getDeviceId(), position);
     }
 
     @Override
-    public void onUpdateEvent(Event event) {
-        Map<String, Collection<?>> data = new HashMap<>();
-        data.put(KEY_EVENTS, Collections.singletonList(event));
-        sendData(data);
+    public synchronized void onUpdateEvent(Event event) {
+        if (pendingEvents.size() >= MAX_PENDING_EVENTS) {
+            pendingEvents.removeFirst();
+        }
+        pendingEvents.addLast(event);
     }
 
-    private void sendData(Map<String, Collection<?>> data) {
-        if (!data.isEmpty() && isConnected()) {
+    private synchronized void completeSend() {
+        sending = false;
+    }
+
+    private static void appendArray(
+            StringBuilder builder, String key, Collection<?> items, Map<Object, String> cache)
+            throws JsonProcessingException {
+        if (!items.isEmpty()) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append('"').append(key).append("\":[");
+            boolean first = true;
+            for (Object item : items) {
+                String json = cache.get(item);
+                if (json == null) {
+                    json = Context.getObjectMapper().writeValueAsString(item);
+                    cache.put(item, json);
+                }
+                if (!first) {
+                    builder.append(',');
+                }
+                builder.append(json);
+                first = false;
+            }
+            builder.append(']');
+        }
+    }
+
+    /**
+     * Sends pending updates as one frame unless the previous frame is still being written. Serialized objects are
+     * taken from and added to the given cache.
+     */
+    public void flush(Map<Object, String> cache) {
+        Collection<Device> devices;
+        Collection<Position> positions;
+        Collection<Event> events;
+        synchronized (this) {
+            if (sending || pendingDevices.isEmpty() && pendingPositions.isEmpty() && pendingEvents.isEmpty()) {
+                return;
+            }
+            devices = new ArrayList<>(pendingDevices.values());
+            positions = new ArrayList<>(pendingPositions.values());
+            events = new ArrayList<>(pendingEvents);
+            pendingDevices.clear();
+            pendingPositions.clear();
+            pendingEvents.clear();
+            sending = true;
+        }
+
+        if (isConnected()) {
             try {
-                getRemote().sendString(Context.getObjectMapper().writeValueAsString(data), null);
+                StringBuilder builder = new StringBuilder("{");
+                appendArray(builder, KEY_DEVICES, devices, cache);
+                appendArray(builder, KEY_POSITIONS, positions, cache);
+                appendArray(builder, KEY_EVENTS, events, cache);
+                builder.append('}');
+                getRemote().sendString(builder.toString(), writeCallback);
+                return;
             } catch (JsonProcessingException e) {
                 Log.warning(e);
             }
         }
+        completeSend();
     }
+
 }
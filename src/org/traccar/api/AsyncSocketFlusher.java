@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.api;
+
+import org.traccar.helper.Log;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Periodically sends updates collected by open sockets. All sockets are flushed in one pass, so an object pushed to
+ * many sessions is serialized only once per pass.
+ */
+public class AsyncSocketFlusher extends TimerTask {
+
+    public static final long DEFAULT_INTERVAL = 250;
+
+    private final Set<AsyncSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<AsyncSocket, Boolean>());
+
+    public AsyncSocketFlusher(long interval) {
+        new Timer("async-socket-flusher", true).schedule(this, interval, interval);
+    }
+
+    public void addSocket(AsyncSocket socket) {
+        sockets.add(socket);
+    }
+
+    public void removeSocket(AsyncSocket socket) {
+        sockets.remove(socket);
+    }
+
+    @Override
+    public void run() {
+        Map<Object, String> cache = new IdentityHashMap<>();
+        for (AsyncSocket socket : sockets) {
+            try {
+                socket.flush(cache);
+            } catch (RuntimeException error) {
+                Log.warning(error);
+            }
+        }
+    }
+
+}
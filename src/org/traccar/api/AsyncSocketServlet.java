@@ -30,12 +30,14 @@ public class AsyncSocketServlet extends WebSocketServlet {
     @Override
     public void configure(WebSocketServletFactory factory) {
         factory.getPolicy().setIdleTimeout(Context.getConfig().getLong("web.timeout", ASYNC_TIMEOUT));
+        final AsyncSocketFlusher flusher = new AsyncSocketFlusher(
+                Context.getConfig().getLong("web.updateInterval", AsyncSocketFlusher.DEFAULT_INTERVAL));
         factory.setCreator(new WebSocketCreator() {
             @Override
             public Object createWebSocket(ServletUpgradeRequest req, ServletUpgradeResponse resp) {
                 if (req.getSession() != null) {
                     long userId = (Long) req.getSession().getAttribute(SessionResource.USER_ID_KEY);
-                    return new AsyncSocket(userId);
+                    return new AsyncSocket(userId, flusher);
                 } else {
                     return null;
                 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.api;
+
+import org.traccar.database.QueryBuilder;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+
+/**
+ * Writes query results as UTF-8 text while they are read from the database, like {@link JsonStreamingOutput} does
+ * for JSON.
+ */
+public abstract class TextStreamingOutput<T> implements StreamingOutput {
+
+    protected abstract void execute(QueryBuilder.ResultHandler<T> handler) throws SQLException;
+
+    protected abstract void writeObject(Writer writer, T object) throws IOException;
+
+    protected abstract void writeEnd(Writer writer) throws IOException;
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        try {
+            execute(new QueryBuilder.ResultHandler<T>() {
+                @Override
+                public void handle(T object) throws SQLException {
+                    try {
+                        writeObject(writer, object);
+                    } catch (IOException error) {
+                        throw new SQLException(error);
+                    }
+                }
+            });
+        } catch (SQLException error) {
+            if (error.getCause() instanceof IOException) {
+                throw (IOException) error.getCause();
+            }
+            throw new WebApplicationException(error);
+        }
+        writeEnd(writer);
+        writer.flush();
+    }
+
+}
@@ -38,8 +38,7 @@ public class DevicePermissionResource extends BaseResource {
         Context.getPermissionsManager().checkReadonly(getUserId());
         Context.getPermissionsManager().checkUser(getUserId(), entity.getUserId());
         Context.getPermissionsManager().checkDevice(getUserId(), entity.getDeviceId());
-        Context.getDataManager().linkDevice(entity.getUserId(), entity.getDeviceId());
-        Context.getPermissionsManager().refreshPermissions();
+        Context.getPermissionsManager().linkDevice(entity.getUserId(), entity.getDeviceId());
         if (Context.getGeofenceManager() != null) {
             Context.getGeofenceManager().refresh();
         }
@@ -55,8 +54,7 @@ public class DevicePermissionResource extends BaseResource {
             Context.getPermissionsManager().checkAdmin(getUserId());
         }
         Context.getPermissionsManager().checkDevice(getUserId(), entity.getDeviceId());
-        Context.getDataManager().unlinkDevice(entity.getUserId(), entity.getDeviceId());
-        Context.getPermissionsManager().refreshPermissions();
+        Context.getPermissionsManager().unlinkDevice(entity.getUserId(), entity.getDeviceId());
         if (Context.getGeofenceManager() != null) {
             Context.getGeofenceManager().refresh();
         }
@@ -65,8 +65,12 @@ public class DeviceResource extends BaseResource {
         Context.getPermissionsManager().checkDeviceReadonly(getUserId());
         Context.getPermissionsManager().checkDeviceLimit(getUserId());
         Context.getDeviceManager().addDevice(entity);
-        Context.getDataManager().linkDevice(getUserId(), entity.getId());
-        Context.getPermissionsManager().refreshPermissions();
+        if (entity.getGroupId() == 0) {
+            Context.getPermissionsManager().linkDevice(getUserId(), entity.getId());
+        } else {
+            Context.getDataManager().linkDevice(getUserId(), entity.getId());
+            Context.getPermissionsManager().refreshPermissions();
+        }
         if (Context.getGeofenceManager() != null) {
             Context.getGeofenceManager().refresh();
         }
@@ -38,8 +38,7 @@ public class GroupPermissionResource extends BaseResource {
         Context.getPermissionsManager().checkReadonly(getUserId());
         Context.getPermissionsManager().checkUser(getUserId(), entity.getUserId());
         Context.getPermissionsManager().checkGroup(getUserId(), entity.getGroupId());
-        Context.getDataManager().linkGroup(entity.getUserId(), entity.getGroupId());
-        Context.getPermissionsManager().refreshPermissions();
+        Context.getPermissionsManager().linkGroup(entity.getUserId(), entity.getGroupId());
         if (Context.getGeofenceManager() != null) {
             Context.getGeofenceManager().refresh();
         }
@@ -51,8 +50,7 @@ public class GroupPermissionResource extends BaseResource {
         Context.getPermissionsManager().checkReadonly(getUserId());
         Context.getPermissionsManager().checkUser(getUserId(), entity.getUserId());
         Context.getPermissionsManager().checkGroup(getUserId(), entity.getGroupId());
-        Context.getDataManager().unlinkGroup(entity.getUserId(), entity.getGroupId());
-        Context.getPermissionsManager().refreshPermissions();
+        Context.getPermissionsManager().unlinkGroup(entity.getUserId(), entity.getGroupId());
         if (Context.getGeofenceManager() != null) {
             Context.getGeofenceManager().refresh();
         }
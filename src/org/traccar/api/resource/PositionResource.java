@@ -17,6 +17,9 @@ package org.traccar.api.resource;
 
 import org.traccar.Context;
 import org.traccar.api.BaseResource;
+import org.traccar.api.JsonStreamingOutput;
+import org.traccar.api.TextStreamingOutput;
+import org.traccar.database.QueryBuilder;
 import org.traccar.helper.DateUtil;
 import org.traccar.model.Position;
 import org.traccar.web.CsvBuilder;
@@ -31,9 +34,11 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 @Path("positions")
@@ -47,8 +52,8 @@ public class PositionResource extends BaseResource {
     public static final String CONTENT_DISPOSITION_VALUE_GPX = "attachment; filename=positions.gpx";
 
     @GET
-    public Collection<Position> getJson(
-            @QueryParam("deviceId") long deviceId, @QueryParam("id") List<Long> positionIds,
+    public Response getJson(
+            @QueryParam("deviceId") final long deviceId, @QueryParam("id") List<Long> positionIds,
             @QueryParam("from") String from, @QueryParam("to") String to)
             throws SQLException {
         if (!positionIds.isEmpty()) {
@@ -58,39 +63,79 @@ public class PositionResource extends BaseResource {
                 Context.getPermissionsManager().checkDevice(getUserId(), position.getDeviceId());
                 positions.add(position);
             }
-            return positions;
+            return Response.ok(positions).build();
         } else if (deviceId == 0) {
-            return Context.getDeviceManager().getInitialState(getUserId());
+            return Response.ok(Context.getDeviceManager().getInitialState(getUserId())).build();
         } else {
             Context.getPermissionsManager().checkDevice(getUserId(), deviceId);
-            return Context.getDataManager().getPositions(
-                    deviceId, DateUtil.parseDate(from), DateUtil.parseDate(to));
+            final Date fromDate = DateUtil.parseDate(from);
+            final Date toDate = DateUtil.parseDate(to);
+            return Response.ok(new JsonStreamingOutput<Position>() {
+                @Override
+                protected void execute(QueryBuilder.ResultHandler<Position> handler) throws SQLException {
+                    Context.getDataManager().getPositions(deviceId, fromDate, toDate, handler);
+                }
+            }).build();
         }
     }
 
     @GET
     @Produces(TEXT_CSV)
     public Response getCsv(
-            @QueryParam("deviceId") long deviceId, @QueryParam("from") String from, @QueryParam("to") String to)
+            @QueryParam("deviceId") final long deviceId,
+            @QueryParam("from") String from, @QueryParam("to") String to)
             throws SQLException {
         Context.getPermissionsManager().checkDevice(getUserId(), deviceId);
-        CsvBuilder csv = new CsvBuilder();
+        final Date fromDate = DateUtil.parseDate(from);
+        final Date toDate = DateUtil.parseDate(to);
+        final CsvBuilder csv = new CsvBuilder();
         csv.addHeaderLine(new Position());
-        csv.addArray(Context.getDataManager().getPositions(
-                deviceId, DateUtil.parseDate(from), DateUtil.parseDate(to)));
-        return Response.ok(csv.build()).header(HttpHeaders.CONTENT_DISPOSITION, CONTENT_DISPOSITION_VALUE_CSV).build();
+        return Response.ok(new TextStreamingOutput<Position>() {
+            @Override
+            protected void execute(QueryBuilder.ResultHandler<Position> handler) throws SQLException {
+                Context.getDataManager().getPositions(deviceId, fromDate, toDate, handler);
+            }
+
+            @Override
+            protected void writeObject(Writer writer, Position position) throws IOException {
+                csv.addLine(position);
+                csv.writeTo(writer);
+            }
+
+            @Override
+            protected void writeEnd(Writer writer) throws IOException {
+                csv.writeTo(writer);
+            }
+        }).header(HttpHeaders.CONTENT_DISPOSITION, CONTENT_DISPOSITION_VALUE_CSV).build();
     }
 
     @GET
     @Produces(GPX)
     public Response getGpx(
-            @QueryParam("deviceId") long deviceId, @QueryParam("from") String from, @QueryParam("to") String to)
+            @QueryParam("deviceId") final long deviceId,
+            @QueryParam("from") String from, @QueryParam("to") String to)
             throws SQLException {
         Context.getPermissionsManager().checkDevice(getUserId(), deviceId);
-        GpxBuilder gpx = new GpxBuilder(Context.getIdentityManager().getDeviceById(deviceId).getName());
-        gpx.addPositions(Context.getDataManager().getPositions(
-                deviceId, DateUtil.parseDate(from), DateUtil.parseDate(to)));
-        return Response.ok(gpx.build()).header(HttpHeaders.CONTENT_DISPOSITION, CONTENT_DISPOSITION_VALUE_GPX).build();
+        final Date fromDate = DateUtil.parseDate(from);
+        final Date toDate = DateUtil.parseDate(to);
+        final GpxBuilder gpx = new GpxBuilder(Context.getIdentityManager().getDeviceById(deviceId).getName());
+        return Response.ok(new TextStreamingOutput<Position>() {
+            @Override
+            protected void execute(QueryBuilder.ResultHandler<Position> handler) throws SQLException {
+                Context.getDataManager().getPositions(deviceId, fromDate, toDate, handler);
+            }
+
+            @Override
+            protected void writeObject(Writer writer, Position position) throws IOException {
+                gpx.addPosition(position);
+                gpx.writeTo(writer);
+            }
+
+            @Override
+            protected void writeEnd(Writer writer) throws IOException {
+                writer.write(gpx.build());
+            }
+        }).header(HttpHeaders.CONTENT_DISPOSITION, CONTENT_DISPOSITION_VALUE_GPX).build();
     }
 
 }
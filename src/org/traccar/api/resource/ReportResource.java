@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 import javax.ws.rs.Consumes;
@@ -15,11 +16,15 @@ import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.traccar.Context;
 import org.traccar.api.BaseResource;
+import org.traccar.api.JsonStreamingOutput;
+import org.traccar.database.QueryBuilder;
 import org.traccar.helper.DateUtil;
 import org.traccar.model.Event;
 import org.traccar.model.Position;
 import org.traccar.reports.Events;
+import org.traccar.reports.ReportUtils;
 import org.traccar.reports.Summary;
 import org.traccar.reports.Trips;
 import org.traccar.reports.model.SummaryReport;
@@ -36,11 +41,21 @@ public class ReportResource extends BaseResource {
 
     @Path("route")
     @GET
-    public Collection<Position> getRoute(
+    public Response getRoute(
             @QueryParam("deviceId") final List<Long> deviceIds, @QueryParam("groupId") final List<Long> groupIds,
             @QueryParam("from") String from, @QueryParam("to") String to) throws SQLException {
-        return Route.getObjects(getUserId(), deviceIds, groupIds,
-                DateUtil.parseDate(from), DateUtil.parseDate(to));
+        final long userId = getUserId();
+        for (long deviceId: ReportUtils.getDeviceList(deviceIds, groupIds)) {
+            Context.getPermissionsManager().checkDevice(userId, deviceId);
+        }
+        final Date fromDate = DateUtil.parseDate(from);
+        final Date toDate = DateUtil.parseDate(to);
+        return Response.ok(new JsonStreamingOutput<Position>() {
+            @Override
+            protected void execute(QueryBuilder.ResultHandler<Position> handler) throws SQLException {
+                Route.getObjects(userId, deviceIds, groupIds, fromDate, toDate, handler);
+            }
+        }).build();
     }
 
     @Path("route")
@@ -39,8 +39,7 @@ public class UserPermissionResource extends BaseResource {
     public Response add(UserPermission entity) throws SQLException {
         Context.getPermissionsManager().checkAdmin(getUserId());
         if (entity.getUserId() != entity.getManagedUserId()) {
-            Context.getDataManager().linkUser(entity.getUserId(), entity.getManagedUserId());
-            Context.getPermissionsManager().refreshUserPermissions();
+            Context.getPermissionsManager().linkUser(entity.getUserId(), entity.getManagedUserId());
         }
         return Response.ok(entity).build();
     }
@@ -48,8 +47,7 @@ public class UserPermissionResource extends BaseResource {
     @DELETE
     public Response remove(UserPermission entity) throws SQLException {
         Context.getPermissionsManager().checkAdmin(getUserId());
-        Context.getDataManager().unlinkUser(entity.getUserId(), entity.getManagedUserId());
-        Context.getPermissionsManager().refreshUserPermissions();
+        Context.getPermissionsManager().unlinkUser(entity.getUserId(), entity.getManagedUserId());
         return Response.noContent().build();
     }
 
@@ -74,9 +74,8 @@ public class UserResource extends BaseResource {
         }
         Context.getPermissionsManager().addUser(entity);
         if (Context.getPermissionsManager().isManager(getUserId())) {
-            Context.getDataManager().linkUser(getUserId(), entity.getId());
+            Context.getPermissionsManager().linkUser(getUserId(), entity.getId());
         }
-        Context.getPermissionsManager().refreshUserPermissions();
         if (Context.getNotificationManager() != null) {
             Context.getNotificationManager().refresh();
         }
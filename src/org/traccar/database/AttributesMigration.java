@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.Context;
+import org.traccar.helper.Log;
+import org.traccar.model.Position;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Rewrites stored position attributes with the codec selected by database.attributesCodec. Rows are processed in
+ * primary key ranges, so the migration can run next to a live server and can be restarted from the last logged id.
+ * Rows without attributes are left untouched, including rows that could not be decoded.
+ * Usage: {@code AttributesMigration <config file> [first id]}.
+ */
+public final class AttributesMigration {
+
+    private static final int CHUNK_SIZE = 10000;
+
+    private AttributesMigration() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Context.initDatabase(args);
+        DataManager dataManager = Context.getDataManager();
+
+        long fromId = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        long lastId = dataManager.getLastPositionId();
+        int chunkSize = Context.getConfig().getInteger("database.migration.chunkSize", CHUNK_SIZE);
+
+        while (fromId <= lastId) {
+            long toId = fromId + chunkSize;
+            Collection<Position> positions = new ArrayList<>();
+            for (Position position : dataManager.getPositionsAttributes(fromId, toId)) {
+                if (!position.getAttributes().isEmpty()) {
+                    positions.add(position);
+                }
+            }
+            if (!positions.isEmpty()) {
+                dataManager.updatePositionsAttributes(positions);
+            }
+            Log.info("Migrated position attributes up to id " + toId);
+            fromId = toId;
+        }
+
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact attribute encoding. Well known keys are written as an index into a shared dictionary and values are
+ * written with type tags and variable length numbers. The result is stored as Base64 text with a prefix, so the
+ * column type does not change and JSON rows can still be read. Maps with values other than numbers, booleans and
+ * strings are stored as JSON.
+ */
+public class BinaryAttributesCodec implements AttributesCodec {
+
+    public static final String PREFIX = "~1";
+
+    // Append only, indexes are stored in the database
+    private static final List<String> DICTIONARY = Arrays.asList(
+            "raw", "index", "hdop", "sat", "rssi", "gps", "event", "alarm", "status", "odometer",
+            "tripOdometer", "hours", "input", "output", "power", "battery", "fuel", "fuelConsumption", "rfid",
+            "version", "type", "ignition", "flags", "charge", "ip", "archive", "distance", "totalDistance", "rpm",
+            "vin", "approximate", "throttle", "motion", "armed", "accuracy", "geofence", "dtcs", "obdSpeed",
+            "obdOdometer", "result", "oid", "tkt_list", "tkt_terminator",
+            "temp1", "temp2", "temp3", "temp4",
+            "adc1", "adc2", "adc3", "adc4", "adc5", "adc6", "adc7", "adc8",
+            "io1", "io2", "io3", "io4", "io5", "io6", "io7", "io8",
+            "io9", "io10", "io11", "io12", "io13", "io14", "io15", "io16",
+            "count1", "count2", "count3", "count4");
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.size(); i++) {
+            DICTIONARY_INDEX.put(DICTIONARY.get(i), i + 1);
+        }
+    }
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_FALSE = 1;
+    private static final int TYPE_TRUE = 2;
+    private static final int TYPE_INTEGER = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_FLOAT = 5;
+    private static final int TYPE_DOUBLE = 6;
+    private static final int TYPE_STRING = 7;
+
+    private final AttributesCodec fallback;
+
+    public BinaryAttributesCodec(AttributesCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    public static boolean isEncoded(String value) {
+        return value.startsWith(PREFIX);
+    }
+
+    private static void writeVarInt(DataOutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    private static long readVarInt(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, data.length);
+        output.write(data);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        byte[] data = new byte[(int) readVarInt(buffer)];
+        buffer.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static boolean writeValue(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            int number = ((Number) value).intValue();
+            output.writeByte(TYPE_INTEGER);
+            writeVarInt(output, ((number << 1) ^ (number >> 31)) & 0xFFFFFFFFL);
+        } else if (value instanceof Long) {
+            long number = (Long) value;
+            output.writeByte(TYPE_LONG);
+            writeVarInt(output, (number << 1) ^ (number >> 63));
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if ((float) number == number || Double.isNaN(number)) {
+                output.writeByte(TYPE_FLOAT);
+                output.writeFloat((float) number);
+            } else {
+                output.writeByte(TYPE_DOUBLE);
+                output.writeDouble(number);
+            }
+        } else if (value instanceof String) {
+            output.writeByte(TYPE_STRING);
+            writeString(output, (String) value);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static Object readValue(ByteBuffer buffer) throws IOException {
+        int type = buffer.get();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_INTEGER:
+                int integer = (int) readVarInt(buffer);
+                return (integer >>> 1) ^ -(integer & 1);
+            case TYPE_LONG:
+                long number = readVarInt(buffer);
+                return (number >>> 1) ^ -(number & 1);
+            case TYPE_FLOAT:
+                return (double) buffer.getFloat();
+            case TYPE_DOUBLE:
+                return buffer.getDouble();
+            case TYPE_STRING:
+                return readString(buffer);
+            default:
+                throw new IOException("Unknown attribute type " + type);
+        }
+    }
+
+    @Override
+    public String encode(Map<?, ?> attributes) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(stream);
+        writeVarInt(output, attributes.size());
+        for (Map.Entry<?, ?> entry : attributes.entrySet()) {
+            Integer index = DICTIONARY_INDEX.get(entry.getKey());
+            if (index != null) {
+                writeVarInt(output, index);
+            } else {
+                writeVarInt(output, 0);
+                writeString(output, String.valueOf(entry.getKey()));
+            }
+            if (!writeValue(output, entry.getValue())) {
+                return fallback.encode(attributes);
+            }
+        }
+        return PREFIX + DatatypeConverter.printBase64Binary(stream.toByteArray());
+    }
+
+    @Override
+    public Map<String, Object> decode(String value) throws IOException {
+        if (!isEncoded(value)) {
+            return fallback.decode(value);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(DatatypeConverter.parseBase64Binary(value.substring(PREFIX.length())));
+        try {
+            int count = (int) readVarInt(buffer);
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                int index = (int) readVarInt(buffer);
+                String key;
+                if (index == 0) {
+                    key = readString(buffer);
+                } else if (index <= DICTIONARY.size()) {
+                    key = DICTIONARY.get(index - 1);
+                } else {
+                    throw new IOException("Unknown attribute key " + index);
+                }
+                attributes.put(key, readValue(buffer));
+            }
+            return attributes;
+        } catch (BufferUnderflowException error) {
+            throw new IOException(error);
+        }
+    }
+
+}
@@ -16,10 +16,8 @@
 package org.traccar.database;
 
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.util.Timeout;
-import org.jboss.netty.util.TimerTask;
+import org.traccar.Config;
 import org.traccar.Context;
-import org.traccar.GlobalTimer;
 import org.traccar.Protocol;
 import org.traccar.helper.Log;
 import org.traccar.model.Device;
@@ -28,39 +26,142 @@ import org.traccar.model.Position;
 
 import java.net.SocketAddress;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionManager {
 
     private static final long DEFAULT_TIMEOUT = 600;
+    private static final long DEFAULT_SWEEP_INTERVAL = 5;
+    private static final int LOCK_STRIPES = 64;
 
     private final long deviceTimeout;
     private final boolean enableStatusEvents;
 
-    private final Map<Long, ActiveDevice> activeDevices = new ConcurrentHashMap<>();
-    private final Map<Long, Set<UpdateListener>> listeners = new ConcurrentHashMap<>();
-    private final Map<Long, Timeout> timeouts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, ActiveDevice> activeDevices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Set<Long>> channelDevices = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Set<UpdateListener>> listeners = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Long> lastSeen = new ConcurrentHashMap<>();
+
+    /**
+     * Status changes lock by device id, because the cached device instance is replaced when a device is updated.
+     */
+    private final Object[] deviceLocks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong sweepTime = new AtomicLong();
+    private final AtomicLong maxSweepTime = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
 
     public ConnectionManager() {
-        deviceTimeout = Context.getConfig().getLong("status.timeout", DEFAULT_TIMEOUT) * 1000;
-        enableStatusEvents = Context.getConfig().getBoolean("event.statusHandler");
+        this(Context.getConfig());
+    }
+
+    public ConnectionManager(Config config) {
+        deviceTimeout = config.getLong("status.timeout", DEFAULT_TIMEOUT) * 1000;
+        enableStatusEvents = config.getBoolean("event.statusHandler");
+        for (int i = 0; i < deviceLocks.length; i++) {
+            deviceLocks[i] = new Object();
+        }
+        long sweepInterval = config.getLong("status.sweepInterval", DEFAULT_SWEEP_INTERVAL) * 1000;
+        new Timer("status-sweeper", true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (RuntimeException error) {
+                    Log.warning(error);
+                }
+            }
+        }, sweepInterval, sweepInterval);
+    }
+
+    public long getSweeps() {
+        return sweeps.get();
+    }
+
+    public long getSweepTime() {
+        return TimeUnit.NANOSECONDS.toMillis(sweepTime.get());
+    }
+
+    public long getMaxSweepTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxSweepTime.get());
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public void resetMetrics() {
+        sweeps.set(0);
+        sweepTime.set(0);
+        maxSweepTime.set(0);
+        expired.set(0);
+    }
+
+    /**
+     * Switches online devices that have not reported within the status timeout to unknown.
+     */
+    public void sweep() {
+        long startTime = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, Long> entry : lastSeen.entrySet()) {
+            Long time = entry.getValue();
+            if (now - time > deviceTimeout && updateDevice(entry.getKey(), Device.STATUS_UNKNOWN, null, time)) {
+                expired.incrementAndGet();
+            }
+        }
+        long duration = System.nanoTime() - startTime;
+        sweeps.incrementAndGet();
+        sweepTime.addAndGet(duration);
+        long max = maxSweepTime.get();
+        while (duration > max && !maxSweepTime.compareAndSet(max, duration)) {
+            max = maxSweepTime.get();
+        }
     }
 
     public void addActiveDevice(long deviceId, Protocol protocol, Channel channel, SocketAddress remoteAddress) {
-        activeDevices.put(deviceId, new ActiveDevice(deviceId, protocol, channel, remoteAddress));
+        ActiveDevice activeDevice = new ActiveDevice(deviceId, protocol, channel, remoteAddress);
+        ActiveDevice previous = activeDevices.put(deviceId, activeDevice);
+        if (previous != null && previous.getChannel() != channel) {
+            Set<Long> previousDevices = channelDevices.get(previous.getChannel().getId());
+            if (previousDevices != null) {
+                previousDevices.remove(deviceId);
+            }
+        }
+        Set<Long> deviceIds = channelDevices.get(channel.getId());
+        if (deviceIds == null) {
+            deviceIds = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            Set<Long> existing = channelDevices.putIfAbsent(channel.getId(), deviceIds);
+            if (existing != null) {
+                deviceIds = existing;
+            }
+        }
+        deviceIds.add(deviceId);
     }
 
+    /**
+     * Handles all devices of a closed channel. Connectionless protocols share one channel between many devices.
+     */
     public void removeActiveDevice(Channel channel) {
-        for (ActiveDevice activeDevice : activeDevices.values()) {
-            if (activeDevice.getChannel() == channel) {
-                updateDevice(activeDevice.getDeviceId(), Device.STATUS_OFFLINE, null);
-                activeDevices.remove(activeDevice.getDeviceId());
-                break;
+        Set<Long> deviceIds = channelDevices.remove(channel.getId());
+        if (deviceIds != null) {
+            for (long deviceId : deviceIds) {
+                ActiveDevice activeDevice = activeDevices.get(deviceId);
+                // device may have already reconnected on a new channel
+                if (activeDevice != null && activeDevice.getChannel() == channel) {
+                    updateDevice(deviceId, Device.STATUS_OFFLINE, null);
+                    activeDevices.remove(deviceId, activeDevice);
+                }
             }
         }
     }
@@ -69,86 +170,103 @@ public class ConnectionManager {
         return activeDevices.get(deviceId);
     }
 
-    public void updateDevice(final long deviceId, String status, Date time) {
-        Device device = Context.getIdentityManager().getDeviceById(deviceId);
-        if (device == null) {
-            return;
-        }
+    public void updateDevice(long deviceId, String status, Date time) {
+        updateDevice(deviceId, status, time, null);
+    }
 
-        if (enableStatusEvents && !status.equals(device.getStatus())) {
-            String eventType;
-            switch (status) {
-                case Device.STATUS_ONLINE:
-                    eventType = Event.TYPE_DEVICE_ONLINE;
-                    break;
-                case Device.STATUS_UNKNOWN:
-                    eventType = Event.TYPE_DEVICE_UNKNOWN;
-                    break;
-                default:
-                    eventType = Event.TYPE_DEVICE_OFFLINE;
-                    break;
+    /**
+     * Changes the device status. With a last seen time given, the status only changes if the device has not reported
+     * since that time, which keeps the sweep from overriding a message that arrived while it was running.
+     */
+    private boolean updateDevice(long deviceId, String status, Date time, Long seenTime) {
+        Device device;
+        Event event = null;
+        synchronized (deviceLocks[(int) (deviceId & (LOCK_STRIPES - 1))]) {
+            device = Context.getIdentityManager().getDeviceById(deviceId);
+            if (device == null) {
+                if (seenTime != null) {
+                    lastSeen.remove(deviceId, seenTime);
+                }
+                return false;
             }
-            Event event = new Event(eventType, deviceId);
-            if (Context.getNotificationManager() != null) {
-                Context.getNotificationManager().updateEvent(event, null);
+
+            if (seenTime != null) {
+                if (!lastSeen.remove(deviceId, seenTime)) {
+                    return false;
+                }
+            } else if (status.equals(Device.STATUS_ONLINE)) {
+                lastSeen.put(deviceId, System.currentTimeMillis());
+            } else {
+                lastSeen.remove(deviceId);
             }
-        }
-        device.setStatus(status);
 
-        Timeout timeout = timeouts.remove(deviceId);
-        if (timeout != null) {
-            timeout.cancel();
-        }
+            if (enableStatusEvents && !status.equals(device.getStatus())) {
+                String eventType;
+                switch (status) {
+                    case Device.STATUS_ONLINE:
+                        eventType = Event.TYPE_DEVICE_ONLINE;
+                        break;
+                    case Device.STATUS_UNKNOWN:
+                        eventType = Event.TYPE_DEVICE_UNKNOWN;
+                        break;
+                    default:
+                        eventType = Event.TYPE_DEVICE_OFFLINE;
+                        break;
+                }
+                event = new Event(eventType, deviceId);
+            }
+            device.setStatus(status);
 
-        if (time != null) {
-            device.setLastUpdate(time);
+            if (time != null) {
+                device.setLastUpdate(time);
+            }
         }
 
-        if (status.equals(Device.STATUS_ONLINE)) {
-            timeouts.put(deviceId, GlobalTimer.getTimer().newTimeout(new TimerTask() {
-                @Override
-                public void run(Timeout timeout) throws Exception {
-                    if (!timeout.isCancelled()) {
-                        updateDevice(deviceId, Device.STATUS_UNKNOWN, null);
-                    }
-                }
-            }, deviceTimeout, TimeUnit.MILLISECONDS));
+        if (event != null && Context.getNotificationManager() != null) {
+            Context.getNotificationManager().updateEvent(event, null);
         }
 
-        try {
-            Context.getDeviceManager().updateDeviceStatus(device);
-        } catch (SQLException error) {
-            Log.warning(error);
+        if (Context.getDeviceManager() != null) {
+            try {
+                Context.getDeviceManager().updateDeviceStatus(device);
+            } catch (SQLException error) {
+                Log.warning(error);
+            }
         }
 
         updateDevice(device);
+        return true;
     }
 
-    public synchronized void updateDevice(Device device) {
+    public void updateDevice(Device device) {
+        if (Context.getPermissionsManager() == null) {
+            return;
+        }
         for (long userId : Context.getPermissionsManager().getDeviceUsers(device.getId())) {
-            if (listeners.containsKey(userId)) {
-                for (UpdateListener listener : listeners.get(userId)) {
+            Set<UpdateListener> userListeners = listeners.get(userId);
+            if (userListeners != null) {
+                for (UpdateListener listener : userListeners) {
                     listener.onUpdateDevice(device);
                 }
             }
         }
     }
 
-    public synchronized void updatePosition(Position position) {
-        long deviceId = position.getDeviceId();
-
-        for (long userId : Context.getPermissionsManager().getDeviceUsers(deviceId)) {
-            if (listeners.containsKey(userId)) {
-                for (UpdateListener listener : listeners.get(userId)) {
+    public void updatePosition(Position position) {
+        for (long userId : Context.getPermissionsManager().getDeviceUsers(position.getDeviceId())) {
+            Set<UpdateListener> userListeners = listeners.get(userId);
+            if (userListeners != null) {
+                for (UpdateListener listener : userListeners) {
                     listener.onUpdatePosition(position);
                 }
             }
         }
     }
 
-    public synchronized void updateEvent(long userId, Event event) {
-        if (listeners.containsKey(userId)) {
-            for (UpdateListener listener : listeners.get(userId)) {
+    public void updateEvent(long userId, Event event) {
+        Set<UpdateListener> userListeners = listeners.get(userId);
+        if (userListeners != null) {
+            for (UpdateListener listener : userListeners) {
                 listener.onUpdateEvent(event);
             }
         }
@@ -160,18 +278,23 @@ public class ConnectionManager {
         void onUpdateEvent(Event event);
     }
 
-    public synchronized void addListener(long userId, UpdateListener listener) {
-        if (!listeners.containsKey(userId)) {
-            listeners.put(userId, new HashSet<UpdateListener>());
+    public void addListener(long userId, UpdateListener listener) {
+        Set<UpdateListener> userListeners = listeners.get(userId);
+        if (userListeners == null) {
+            userListeners = new CopyOnWriteArraySet<>();
+            Set<UpdateListener> existing = listeners.putIfAbsent(userId, userListeners);
+            if (existing != null) {
+                userListeners = existing;
+            }
         }
-        listeners.get(userId).add(listener);
+        userListeners.add(listener);
     }
 
-    public synchronized void removeListener(long userId, UpdateListener listener) {
-        if (!listeners.containsKey(userId)) {
-            listeners.put(userId, new HashSet<UpdateListener>());
+    public void removeListener(long userId, UpdateListener listener) {
+        Set<UpdateListener> userListeners = listeners.get(userId);
+        if (userListeners != null) {
+            userListeners.remove(listener);
         }
-        listeners.get(userId).remove(listener);
     }
 
 }
@@ -22,6 +22,7 @@ import java.net.URLClassLoader;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import javax.naming.InitialContext;
 import javax.sql.DataSource;
@@ -35,6 +36,7 @@ import liquibase.resource.FileSystemResourceAccessor;
 import liquibase.resource.ResourceAccessor;
 
 import org.traccar.Config;
+import org.traccar.Context;
 import org.traccar.helper.Log;
 import org.traccar.model.AttributeAlias;
 import org.traccar.model.Calendar;
@@ -62,63 +64,160 @@ import com.zaxxer.hikari.HikariDataSource;
 
 public class DataManager {
 
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final long FLUSH_TIMEOUT = 10 * 1000;
+
     private final Config config;
 
-    private DataSource dataSource;
+    private MeteredDataSource dataSource;
+    private MeteredDataSource replicaDataSource;
+    private ReplicaMonitor replicaMonitor;
+
+    private PositionBatchWriter positionBatchWriter;
+    private volatile boolean batchKeysSupported = true;
+
+    private final int fetchSize;
+
+    private DeviceStateWriter deviceStateWriter;
 
     public DataManager(Config config) throws Exception {
         this.config = config;
 
+        fetchSize = config.getInteger("database.fetchSize", DEFAULT_FETCH_SIZE);
+
         initDatabase();
         initDatabaseSchema();
     }
 
+    /**
+     * Starts background position and device state writers. Tools that only need database access skip this.
+     */
+    public void initWriters() throws SQLException {
+        if (config.getBoolean("database.batch.enable")) {
+            positionBatchWriter = new PositionBatchWriter(this,
+                    config.getInteger("database.batch.size", PositionBatchWriter.DEFAULT_BATCH_SIZE),
+                    config.getLong("database.batch.delay", PositionBatchWriter.DEFAULT_BATCH_DELAY),
+                    config.getInteger("database.batch.queueSize", PositionBatchWriter.DEFAULT_QUEUE_SIZE));
+        }
+
+        if (config.getBoolean("database.writeBehind.enable")) {
+            File marker = new File(config.getString("database.writeBehind.marker", DeviceStateWriter.DEFAULT_MARKER));
+            if (!DeviceStateWriter.createMarker(marker)) {
+                Log.warning("Device state of the previous run may not have been written, restoring latest positions");
+                restoreLatestPositions();
+            }
+            deviceStateWriter = new DeviceStateWriter(this,
+                    config.getLong("database.writeBehind.delay", DeviceStateWriter.DEFAULT_DELAY), marker);
+        }
+    }
+
+    public DeviceStateWriter getDeviceStateWriter() {
+        return deviceStateWriter;
+    }
+
+    public void flush() {
+        if (positionBatchWriter != null) {
+            positionBatchWriter.close(FLUSH_TIMEOUT);
+        }
+        if (deviceStateWriter != null) {
+            deviceStateWriter.close();
+        }
+    }
+
+    public PositionBatchWriter getPositionBatchWriter() {
+        return positionBatchWriter;
+    }
+
     public DataSource getDataSource() {
         return dataSource;
     }
 
+    public MeteredDataSource getReplicaDataSource() {
+        return replicaDataSource;
+    }
+
+    public ReplicaMonitor getReplicaMonitor() {
+        return replicaMonitor;
+    }
+
     private void initDatabase() throws Exception {
 
-        String jndiName = config.getString("database.jndi");
+        String driverFile = config.getString("database.driverFile");
+        if (driverFile != null) {
+            URLClassLoader classLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
+            Method method = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
+            method.setAccessible(true);
+            method.invoke(classLoader, new File(driverFile).toURI().toURL());
+        }
 
-        if (jndiName != null) {
+        String driver = config.getString("database.driver");
+        if (driver != null) {
+            Class.forName(driver);
+        }
 
-            dataSource = (DataSource) new InitialContext().lookup(jndiName);
+        dataSource = new MeteredDataSource(createDataSource("database", "database"));
 
-        } else {
+        if (config.hasKey("database.replica.url") || config.hasKey("database.replica.jndi")) {
+            replicaDataSource = new MeteredDataSource(createDataSource("database.replica", "database"));
+            replicaMonitor = new ReplicaMonitor(dataSource, replicaDataSource,
+                    getQuery("database.selectLastPositionId"),
+                    config.getLong("database.replica.checkInterval", ReplicaMonitor.DEFAULT_INTERVAL),
+                    config.getLong("database.replica.maxLag", ReplicaMonitor.DEFAULT_MAX_LAG));
+        }
+    }
 
-            String driverFile = config.getString("database.driverFile");
-            if (driverFile != null) {
-                URLClassLoader classLoader = (URLClassLoader) ClassLoader.getSystemClassLoader();
-                Method method = URLClassLoader.class.getDeclaredMethod("addURL", URL.class);
-                method.setAccessible(true);
-                method.invoke(classLoader, new File(driverFile).toURI().toURL());
-            }
+    private String getConfig(String prefix, String defaultPrefix, String key) {
+        return config.getString(prefix + key, config.getString(defaultPrefix + key));
+    }
 
-            String driver = config.getString("database.driver");
-            if (driver != null) {
-                Class.forName(driver);
-            }
+    private DataSource createDataSource(String prefix, String defaultPrefix) throws Exception {
+
+        String jndiName = config.getString(prefix + ".jndi");
+
+        if (jndiName != null) {
+
+            return (DataSource) new InitialContext().lookup(jndiName);
+
+        } else {
 
             HikariConfig hikariConfig = new HikariConfig();
-            hikariConfig.setDriverClassName(config.getString("database.driver"));
-            hikariConfig.setJdbcUrl(config.getString("database.url"));
-            hikariConfig.setUsername(config.getString("database.user"));
-            hikariConfig.setPassword(config.getString("database.password"));
-            hikariConfig.setConnectionInitSql(config.getString("database.checkConnection", "SELECT 1"));
+            hikariConfig.setDriverClassName(getConfig(prefix, defaultPrefix, ".driver"));
+            hikariConfig.setJdbcUrl(config.getString(prefix + ".url"));
+            hikariConfig.setUsername(getConfig(prefix, defaultPrefix, ".user"));
+            hikariConfig.setPassword(getConfig(prefix, defaultPrefix, ".password"));
+            hikariConfig.setConnectionInitSql(config.getString(prefix + ".checkConnection",
+                    config.getString(defaultPrefix + ".checkConnection", "SELECT 1")));
             hikariConfig.setIdleTimeout(600000);
+            hikariConfig.setPoolName(prefix);
 
-            int maxPoolSize = config.getInteger("database.maxPoolSize");
+            int maxPoolSize = config.getInteger(prefix + ".maxPoolSize");
 
             if (maxPoolSize != 0) {
                 hikariConfig.setMaximumPoolSize(maxPoolSize);
             }
 
-            dataSource = new HikariDataSource(hikariConfig);
+            return new HikariDataSource(hikariConfig);
 
         }
     }
 
+    /**
+     * Creates a read only history query on the replica if it is caught up for the requested period, otherwise on the
+     * primary database. Falling back only at this point guarantees that no rows were handed out yet. Only queries
+     * bounded by server time pass their end, positions are selected by fix time and devices upload old fixes late.
+     */
+    private QueryBuilder createHistoryQuery(String key, Date serverTimeTo) throws SQLException {
+        if (replicaMonitor != null && replicaMonitor.isAvailable(serverTimeTo)) {
+            try {
+                return QueryBuilder.create(replicaDataSource, getQuery(key));
+            } catch (SQLException error) {
+                Log.warning(error);
+                replicaMonitor.setFailed();
+            }
+        }
+        return QueryBuilder.create(dataSource, getQuery(key));
+    }
+
     private String getQuery(String key) {
         String query = config.getString(key);
         if (query == null) {
@@ -202,22 +301,48 @@ public class DataManager {
                 .executeQuery(Device.class);
     }
 
+    public Device getDeviceByUniqueId(String uniqueId) throws SQLException {
+        return QueryBuilder.create(dataSource, getQuery("database.selectDeviceByUniqueId"))
+                .setString("uniqueId", uniqueId)
+                .executeQuerySingle(Device.class);
+    }
+
+    public Collection<Device> getDevicesModified(Date since) throws SQLException {
+        return QueryBuilder.create(dataSource, getQuery("database.selectDevicesModified"))
+                .setDate("since", since)
+                .executeQuery(Device.class);
+    }
+
     public void addDevice(Device device) throws SQLException {
         device.setId(QueryBuilder.create(dataSource, getQuery("database.insertDevice"), true)
                 .setObject(device)
+                .setDate("modified", new Date())
                 .executeUpdate());
     }
 
     public void updateDevice(Device device) throws SQLException {
         QueryBuilder.create(dataSource, getQuery("database.updateDevice"))
                 .setObject(device)
+                .setDate("modified", new Date())
                 .executeUpdate();
     }
 
     public void updateDeviceStatus(Device device) throws SQLException {
-        QueryBuilder.create(dataSource, getQuery("database.updateDeviceStatus"))
-                .setObject(device)
-                .executeUpdate();
+        if (deviceStateWriter != null) {
+            deviceStateWriter.updateDeviceStatus(device);
+        } else {
+            QueryBuilder.create(dataSource, getQuery("database.updateDeviceStatus"))
+                    .setObject(device)
+                    .executeUpdate();
+        }
+    }
+
+    protected void updateDeviceStatuses(Collection<Device> devices) throws SQLException {
+        QueryBuilder builder = QueryBuilder.create(dataSource, getQuery("database.updateDeviceStatus"));
+        for (Device device : devices) {
+            builder.setObject(device).addBatch();
+        }
+        builder.executeBatch();
     }
 
     public void removeDevice(long deviceId) throws SQLException {
@@ -278,67 +403,59 @@ public class DataManager {
     }
 
     public Collection<Position> getPositions(long deviceId, Date from, Date to) throws SQLException {
-        return QueryBuilder.create(dataSource, getQuery("database.selectPositions"))
+        return createHistoryQuery("database.selectPositions", null)
                 .setLong("deviceId", deviceId)
                 .setDate("from", from)
                 .setDate("to", to)
                 .executeQuery(Position.class);
     }
 
+    public void getPositions(long deviceId, Date from, Date to, QueryBuilder.ResultHandler<Position> handler)
+            throws SQLException {
+        createHistoryQuery("database.selectPositions", null)
+                .setLong("deviceId", deviceId)
+                .setDate("from", from)
+                .setDate("to", to)
+                .executeQuery(Position.class, fetchSize, handler);
+    }
+
     public Position getPosition(long positionId) throws SQLException {
         return QueryBuilder.create(dataSource, getQuery("database.selectPosition"))
                 .setLong("id", positionId)
                 .executeQuerySingle(Position.class);
     }
 
-    public void addPosition(Position position) throws SQLException {
-
-        Device connectedDevice = new Device();
-
-        Collection<Device> devicesCollection = getAllDevices();
-        for (Device device: devicesCollection) {
-            if (device.getId() == position.getDeviceId()) {
-                connectedDevice = device;
-            }
+    private void addDriverStamping(Position position, String cardSerial) throws SQLException {
+        DriverStamping driverStamping = new DriverStamping();
+        driverStamping.setDeviceId(position.getDeviceId());
+        Device device = Context.getIdentityManager().getDeviceById(position.getDeviceId());
+        if (device != null) {
+            driverStamping.setImei(device.getUniqueId());
         }
-        position.getProtocol();
+        driverStamping.setCardSerial(cardSerial);
+        driverStamping.setStmpTs(position.getDeviceTime());
 
-        if (position.getString("oid") != null) {
-            DriverStamping driverStamping = new DriverStamping();
-            driverStamping.setDeviceId(position.getDeviceId());
-            driverStamping.setImei(connectedDevice.getUniqueId());
+        driverStamping.setId(QueryBuilder.create(dataSource, getQuery("database.insertDriverStamping"), true)
+                .setDate("now", new Date())
+                .setObject(driverStamping)
+                .executeUpdate());
+    }
 
-//          parse these from oid command content
-            driverStamping.setCardSerial(position.getString("oid"));
-            driverStamping.setStmpTs(position.getDeviceTime());
+    protected void addStampings(Position position) throws SQLException {
 
-            driverStamping.setId(QueryBuilder.create(dataSource, getQuery("database.insertDriverStamping"), true)
-                    .setDate("now", new Date())
-                    .setObject(driverStamping)
-                    .executeUpdate());
+        String oid = position.getString("oid");
+        if (oid != null) {
+            addDriverStamping(position, oid);
         }
 
-        if (position.getLong(Position.KEY_RFID) != 0) {
-            DriverStamping driverStamping = new DriverStamping();
-            driverStamping.setDeviceId(position.getDeviceId());
-            driverStamping.setImei(connectedDevice.getUniqueId());
-
-//          parse these from oid command content
-            long rfid = position.getLong(Position.KEY_RFID);
-            String rfidString = Long.toString(rfid);
-            driverStamping.setCardSerial(rfidString);
-            driverStamping.setStmpTs(position.getDeviceTime());
-
-            driverStamping.setId(QueryBuilder.create(dataSource, getQuery("database.insertDriverStamping"), true)
-                    .setDate("now", new Date())
-                    .setObject(driverStamping)
-                    .executeUpdate());
+        long rfid = position.getLong(Position.KEY_RFID);
+        if (rfid != 0) {
+            addDriverStamping(position, Long.toString(rfid));
         }
 
-        if (position.getString("tkt_list") != null) {
-            String tktList = position.getString("tkt_list");
-            String tktTerminator = position.getString("tkt_terminator");
-            String[] tickets = tktList.split(tktTerminator);
+        String tktList = position.getString("tkt_list");
+        if (tktList != null) {
+            String[] tickets = tktList.split(position.getString("tkt_terminator"));
             for (String tkt: tickets) {
                 TicketStamping ticketStamping = new TicketStamping(tkt);
                 ticketStamping.setDeviceId(position.getDeviceId());
@@ -348,17 +465,75 @@ public class DataManager {
                         .executeUpdate());
             }
         }
+    }
+
+    /**
+     * Stores the position and then its stampings. If only the stampings fail, the position already has an id, so
+     * callers can tell that it must not be stored again.
+     */
+    public void addPosition(Position position) throws SQLException {
+
+        if (positionBatchWriter != null) {
+            positionBatchWriter.addPosition(position);
+        } else {
+            insertPosition(position);
+        }
+
+        addStampings(position);
+    }
 
+    protected void insertPosition(Position position) throws SQLException {
         position.setId(QueryBuilder.create(dataSource, getQuery("database.insertPosition"), true)
-                .setDate("now", new Date())
+                .setDate("now", position.getServerTime() != null ? position.getServerTime() : new Date())
                 .setObject(position)
                 .executeUpdate());
     }
 
+    protected void insertPositions(List<Position> positions) throws SQLException {
+        if (batchKeysSupported && positions.size() > 1) {
+            QueryBuilder queryBuilder = QueryBuilder.create(dataSource, getQuery("database.insertPosition"), true);
+            Date now = new Date();
+            for (Position position : positions) {
+                queryBuilder.setDate("now", position.getServerTime() != null ? position.getServerTime() : now)
+                        .setObject(position).addBatch();
+            }
+            long[] ids = queryBuilder.executeBatch();
+            if (ids != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    positions.get(i).setId(ids[i]);
+                }
+                return;
+            }
+            batchKeysSupported = false;
+            Log.warning("Database driver does not return batch generated keys, inserting positions one by one");
+        }
+        for (Position position : positions) {
+            insertPosition(position);
+        }
+    }
+
     public void updateLatestPosition(Position position) throws SQLException {
-        QueryBuilder.create(dataSource, getQuery("database.updateLatestPosition"))
-                .setDate("now", new Date())
-                .setObject(position)
+        if (deviceStateWriter != null) {
+            deviceStateWriter.updateLatestPosition(position);
+        } else {
+            QueryBuilder.create(dataSource, getQuery("database.updateLatestPosition"))
+                    .setDate("now", new Date())
+                    .setObject(position)
+                    .executeUpdate();
+        }
+    }
+
+    protected void updateLatestPositions(Collection<Position> positions) throws SQLException {
+        QueryBuilder builder = QueryBuilder.create(dataSource, getQuery("database.updateLatestPosition"));
+        Date now = new Date();
+        for (Position position : positions) {
+            builder.setDate("now", now).setObject(position).addBatch();
+        }
+        builder.executeBatch();
+    }
+
+    private void restoreLatestPositions() throws SQLException {
+        QueryBuilder.create(dataSource, getQuery("database.restoreLatestPositions"))
                 .executeUpdate();
     }
 
@@ -367,13 +542,53 @@ public class DataManager {
                 .executeQuery(Position.class);
     }
 
-    public void clearPositionsHistory() throws SQLException {
-        long historyDays = config.getInteger("database.positionsHistoryDays");
-        if (historyDays != 0) {
-            QueryBuilder.create(dataSource, getQuery("database.deletePositions"))
-                    .setDate("serverTime", new Date(System.currentTimeMillis() - historyDays * 24 * 3600 * 1000))
-                    .executeUpdate();
+    public long getLastPositionId() throws SQLException {
+        Position position = QueryBuilder.create(dataSource, getQuery("database.selectLastPositionId"))
+                .executeQuerySingle(Position.class);
+        return position != null ? position.getId() : 0;
+    }
+
+    public Collection<Position> getPositionsAttributes(long fromId, long toId) throws SQLException {
+        return QueryBuilder.create(dataSource, getQuery("database.selectPositionsAttributes"))
+                .setLong("from", fromId)
+                .setLong("to", toId)
+                .executeQuery(Position.class);
+    }
+
+    public void updatePositionsAttributes(Collection<Position> positions) throws SQLException {
+        QueryBuilder builder = QueryBuilder.create(dataSource, getQuery("database.updatePositionAttributes"));
+        for (Position position : positions) {
+            builder.setObject(position).addBatch();
         }
+        builder.executeBatch();
+    }
+
+    /**
+     * Returns ids and server times of the oldest positions of a device after the given id, in id order.
+     */
+    public Collection<Position> getPositionsChunk(long deviceId, long fromId, int count) throws SQLException {
+        return QueryBuilder.create(dataSource, getQuery("database.selectPositionsChunk"))
+                .setLong("deviceId", deviceId)
+                .setLong("fromId", fromId)
+                .setMaxRows(count)
+                .executeQuery(Position.class);
+    }
+
+    public int deletePositions(Date serverTime) throws SQLException {
+        return (int) QueryBuilder.create(dataSource, getQuery("database.deletePositions"))
+                .setDate("serverTime", serverTime)
+                .executeUpdate();
+    }
+
+    public int deletePositions(long deviceId, long positionId, long fromId, long toId, Date serverTime)
+            throws SQLException {
+        return (int) QueryBuilder.create(dataSource, getQuery("database.deletePositionsRange"))
+                .setLong("deviceId", deviceId)
+                .setLong("positionId", positionId)
+                .setLong("fromId", fromId)
+                .setLong("toId", toId)
+                .setDate("serverTime", serverTime)
+                .executeUpdate();
     }
 
     public Server getServer() throws SQLException {
@@ -400,13 +615,22 @@ public class DataManager {
     }
 
     public Collection<Event> getEvents(long deviceId, Date from, Date to) throws SQLException {
-        return QueryBuilder.create(dataSource, getQuery("database.selectEvents"))
+        return createHistoryQuery("database.selectEvents", to)
                 .setLong("deviceId", deviceId)
                 .setDate("from", from)
                 .setDate("to", to)
                 .executeQuery(Event.class);
     }
 
+    public void getEvents(long deviceId, Date from, Date to, QueryBuilder.ResultHandler<Event> handler)
+            throws SQLException {
+        createHistoryQuery("database.selectEvents", to)
+                .setLong("deviceId", deviceId)
+                .setDate("from", from)
+                .setDate("to", to)
+                .executeQuery(Event.class, fetchSize, handler);
+    }
+
     public Collection<Geofence> getGeofences() throws SQLException {
         return QueryBuilder.create(dataSource, getQuery("database.selectGeofencesAll"))
                 .executeQuery(Geofence.class);
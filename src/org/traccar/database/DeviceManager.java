@@ -18,16 +18,19 @@ package org.traccar.database;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.traccar.Config;
 import org.traccar.Context;
+import org.traccar.helper.ExpiringCache;
 import org.traccar.helper.Log;
 import org.traccar.model.Device;
 import org.traccar.model.DeviceTotalDistance;
@@ -38,15 +41,27 @@ import org.traccar.model.Server;
 public class DeviceManager implements IdentityManager {
 
     public static final long DEFAULT_REFRESH_DELAY = 300;
+    public static final long DEFAULT_RELOAD_DELAY = 3600;
+    public static final int DEFAULT_UNKNOWN_CACHE_SIZE = 10000;
+    public static final long DEFAULT_UNKNOWN_TIMEOUT = 600;
+
+    // covers writes that were committed after the previous refresh started
+    private static final long MODIFIED_OVERLAP = 60 * 1000;
 
     private final Config config;
     private final DataManager dataManager;
     private final long dataRefreshDelay;
+    private final long dataReloadDelay;
     private boolean lookupGroupsAttribute;
 
     private Map<Long, Device> devicesById;
     private Map<String, Device> devicesByUniqueId;
     private AtomicLong devicesLastUpdate = new AtomicLong();
+    private volatile long devicesLastReload;
+
+    private final ExpiringCache.Metrics unknownDevicesMetrics = new ExpiringCache.Metrics();
+    private final ExpiringCache<String, Long> unknownDevices;
+    private final long unknownDevicesTimeout;
 
     private Map<Long, Group> groupsById;
     private AtomicLong groupsLastUpdate = new AtomicLong();
@@ -54,9 +69,18 @@ public class DeviceManager implements IdentityManager {
     private final Map<Long, Position> positions = new ConcurrentHashMap<>();
 
     public DeviceManager(DataManager dataManager) {
+        this(dataManager, Context.getConfig());
+    }
+
+    public DeviceManager(DataManager dataManager, Config config) {
         this.dataManager = dataManager;
-        this.config = Context.getConfig();
+        this.config = config;
         dataRefreshDelay = config.getLong("database.refreshDelay", DEFAULT_REFRESH_DELAY) * 1000;
+        dataReloadDelay = config.getLong("database.reloadDelay", DEFAULT_RELOAD_DELAY) * 1000;
+        unknownDevicesTimeout = config.getLong("database.unknownTimeout", DEFAULT_UNKNOWN_TIMEOUT) * 1000;
+        unknownDevices = new ExpiringCache<>(
+                config.getInteger("database.unknownCacheSize", DEFAULT_UNKNOWN_CACHE_SIZE),
+                unknownDevicesTimeout, unknownDevicesMetrics);
         lookupGroupsAttribute = config.getBoolean("deviceManager.lookupGroupsAttribute");
         if (dataManager != null) {
             try {
@@ -71,58 +95,78 @@ public class DeviceManager implements IdentityManager {
         }
     }
 
-    private void updateDeviceCache(boolean force) throws SQLException {
-
-        long lastUpdate = devicesLastUpdate.get();
-        if ((force || System.currentTimeMillis() - lastUpdate > dataRefreshDelay)
-                && devicesLastUpdate.compareAndSet(lastUpdate, System.currentTimeMillis())) {
-            GeofenceManager geofenceManager = Context.getGeofenceManager();
-            Collection<Device> databaseDevices = dataManager.getAllDevices();
-            if (devicesById == null) {
-                devicesById = new ConcurrentHashMap<>(databaseDevices.size());
-            }
-            if (devicesByUniqueId == null) {
-                devicesByUniqueId = new ConcurrentHashMap<>(databaseDevices.size());
+    private void cacheDevice(Device device, GeofenceManager geofenceManager) {
+        Device cachedDevice = devicesById.get(device.getId());
+        if (cachedDevice != null) {
+            cachedDevice.setName(device.getName());
+            cachedDevice.setGroupId(device.getGroupId());
+            cachedDevice.setAttributes(device.getAttributes());
+            if (!device.getUniqueId().equals(cachedDevice.getUniqueId())) {
+                devicesByUniqueId.remove(cachedDevice.getUniqueId());
+                devicesByUniqueId.put(device.getUniqueId(), cachedDevice);
             }
-            Set<Long> databaseDevicesIds = new HashSet<>();
-            Set<String> databaseDevicesUniqueIds = new HashSet<>();
-            for (Device device : databaseDevices) {
-                databaseDevicesIds.add(device.getId());
-                databaseDevicesUniqueIds.add(device.getUniqueId());
-                if (devicesById.containsKey(device.getId())) {
-                    Device cachedDevice = devicesById.get(device.getId());
-                    cachedDevice.setName(device.getName());
-                    cachedDevice.setGroupId(device.getGroupId());
-                    cachedDevice.setAttributes(device.getAttributes());
-                    if (!device.getUniqueId().equals(cachedDevice.getUniqueId())) {
-                        devicesByUniqueId.remove(cachedDevice.getUniqueId());
-                        devicesByUniqueId.put(device.getUniqueId(), cachedDevice);
-                    }
-                    cachedDevice.setUniqueId(device.getUniqueId());
-                } else {
-                    devicesById.put(device.getId(), device);
-                    devicesByUniqueId.put(device.getUniqueId(), device);
-                    if (geofenceManager != null) {
-                        Position lastPosition = getLastPosition(device.getId());
-                        if (lastPosition != null) {
-                            device.setGeofenceIds(geofenceManager.getCurrentDeviceGeofences(lastPosition));
-                        }
-                    }
-                    device.setStatus(Device.STATUS_OFFLINE);
+            cachedDevice.setUniqueId(device.getUniqueId());
+        } else {
+            devicesById.put(device.getId(), device);
+            devicesByUniqueId.put(device.getUniqueId(), device);
+            if (geofenceManager != null) {
+                Position lastPosition = getLastPosition(device.getId());
+                if (lastPosition != null) {
+                    device.setGeofenceIds(geofenceManager.getCurrentDeviceGeofences(lastPosition));
                 }
             }
-            for (Long cachedDeviceId : devicesById.keySet()) {
-                if (!databaseDevicesIds.contains(cachedDeviceId)) {
-                    devicesById.remove(cachedDeviceId);
-                }
+            device.setStatus(Device.STATUS_OFFLINE);
+        }
+        invalidateAttributes(device.getId());
+    }
+
+    private void reloadDeviceCache() throws SQLException {
+        GeofenceManager geofenceManager = Context.getGeofenceManager();
+        Collection<Device> databaseDevices = dataManager.getAllDevices();
+        if (devicesById == null) {
+            devicesById = new ConcurrentHashMap<>(databaseDevices.size());
+        }
+        if (devicesByUniqueId == null) {
+            devicesByUniqueId = new ConcurrentHashMap<>(databaseDevices.size());
+        }
+        Set<Long> databaseDevicesIds = new HashSet<>();
+        Set<String> databaseDevicesUniqueIds = new HashSet<>();
+        for (Device device : databaseDevices) {
+            databaseDevicesIds.add(device.getId());
+            databaseDevicesUniqueIds.add(device.getUniqueId());
+            cacheDevice(device, geofenceManager);
+        }
+        for (Long cachedDeviceId : devicesById.keySet()) {
+            if (!databaseDevicesIds.contains(cachedDeviceId)) {
+                devicesById.remove(cachedDeviceId);
             }
-            for (String cachedDeviceUniqId : devicesByUniqueId.keySet()) {
-                if (!databaseDevicesUniqueIds.contains(cachedDeviceUniqId)) {
-                    devicesByUniqueId.remove(cachedDeviceUniqId);
+        }
+        for (String cachedDeviceUniqId : devicesByUniqueId.keySet()) {
+            if (!databaseDevicesUniqueIds.contains(cachedDeviceUniqId)) {
+                devicesByUniqueId.remove(cachedDeviceUniqId);
+            }
+        }
+    }
+
+    /**
+     * Applies devices added or changed since the previous refresh. Removed devices are only detected by the periodic
+     * full reload.
+     */
+    private void updateDeviceCache(boolean force) throws SQLException {
+
+        long lastUpdate = devicesLastUpdate.get();
+        long currentTime = System.currentTimeMillis();
+        if ((force || currentTime - lastUpdate > dataRefreshDelay)
+                && devicesLastUpdate.compareAndSet(lastUpdate, currentTime)) {
+            if (devicesById == null || currentTime - devicesLastReload > dataReloadDelay) {
+                devicesLastReload = currentTime;
+                reloadDeviceCache();
+            } else {
+                GeofenceManager geofenceManager = Context.getGeofenceManager();
+                for (Device device : dataManager.getDevicesModified(new Date(lastUpdate - MODIFIED_OVERLAP))) {
+                    cacheDevice(device, geofenceManager);
                 }
             }
-            databaseDevicesIds.clear();
-            databaseDevicesUniqueIds.clear();
         }
     }
 
@@ -131,13 +175,34 @@ public class DeviceManager implements IdentityManager {
         return devicesById.get(id);
     }
 
+    public ExpiringCache.Metrics getUnknownDevicesMetrics() {
+        return unknownDevicesMetrics;
+    }
+
+    /**
+     * Looks up a device missing from the cache with a single row query. Identifiers that are not found are not looked
+     * up again until the unknown device timeout passes.
+     */
     @Override
     public Device getDeviceByUniqueId(String uniqueId) throws SQLException {
-        boolean forceUpdate = !devicesByUniqueId.containsKey(uniqueId) && !config.getBoolean("database.ignoreUnknown");
-
-        updateDeviceCache(forceUpdate);
-
-        return devicesByUniqueId.get(uniqueId);
+        updateDeviceCache(false);
+
+        Device device = devicesByUniqueId.get(uniqueId);
+        if (device == null && !config.getBoolean("database.ignoreUnknown")) {
+            long currentTime = System.currentTimeMillis();
+            Long unknownTime = unknownDevices.get(uniqueId);
+            if (unknownTime == null || currentTime - unknownTime > unknownDevicesTimeout) {
+                device = dataManager.getDeviceByUniqueId(uniqueId);
+                if (device != null) {
+                    unknownDevices.remove(uniqueId);
+                    cacheDevice(device, Context.getGeofenceManager());
+                    device = devicesByUniqueId.get(uniqueId);
+                } else {
+                    unknownDevices.put(uniqueId, currentTime);
+                }
+            }
+        }
+        return device;
     }
 
     public Collection<Device> getAllDevices() {
@@ -171,6 +236,7 @@ public class DeviceManager implements IdentityManager {
 
     public void addDevice(Device device) throws SQLException {
         dataManager.addDevice(device);
+        unknownDevices.remove(device.getUniqueId());
 
         devicesById.put(device.getId(), device);
         devicesByUniqueId.put(device.getUniqueId(), device);
@@ -178,9 +244,11 @@ public class DeviceManager implements IdentityManager {
 
     public void updateDevice(Device device) throws SQLException {
         dataManager.updateDevice(device);
+        unknownDevices.remove(device.getUniqueId());
 
         devicesById.put(device.getId(), device);
         devicesByUniqueId.put(device.getUniqueId(), device);
+        invalidateAttributes(device.getId());
     }
 
     public void updateDeviceStatus(Device device) throws SQLException {
@@ -200,6 +268,7 @@ public class DeviceManager implements IdentityManager {
             devicesByUniqueId.remove(deviceUniqueId);
         }
         positions.remove(deviceId);
+        invalidateAttributes(deviceId);
     }
 
     public boolean isLatestPosition(Position position) {
@@ -260,7 +329,10 @@ public class DeviceManager implements IdentityManager {
                 if (groupsById.containsKey(group.getId())) {
                     Group cachedGroup = groupsById.get(group.getId());
                     cachedGroup.setName(group.getName());
-                    cachedGroup.setGroupId(group.getGroupId());
+                    if (cachedGroup.getGroupId() != group.getGroupId()) {
+                        cachedGroup.setGroupId(group.getGroupId());
+                        invalidateGroupAttributes(group.getId());
+                    }
                 } else {
                     groupsById.put(group.getId(), group);
                 }
@@ -328,53 +400,164 @@ public class DeviceManager implements IdentityManager {
         checkGroupCycles(group);
         dataManager.updateGroup(group);
         groupsById.put(group.getId(), group);
+        invalidateGroupAttributes(group.getId());
     }
 
     public void removeGroup(long groupId) throws SQLException {
         dataManager.removeGroup(groupId);
         groupsById.remove(groupId);
+        invalidateGroupAttributes(groupId);
+    }
+
+    /**
+     * Attribute value resolved through the device, its groups and the server or configuration. The value parsed by
+     * the last typed lookup is kept along with the string.
+     */
+    private static final class ResolvedAttribute {
+
+        private final String value;
+        private volatile Object parsed;
+
+        private ResolvedAttribute(String value) {
+            this.value = value;
+        }
+
+    }
+
+    private final ConcurrentMap<Long, ConcurrentMap<String, ResolvedAttribute>> serverAttributes
+            = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, ConcurrentMap<String, ResolvedAttribute>> configAttributes
+            = new ConcurrentHashMap<>();
+    private final AtomicLong attributesVersion = new AtomicLong();
+
+    private ResolvedAttribute resolveAttribute(long deviceId, String attributeName, boolean lookupConfig) {
+        ConcurrentMap<Long, ConcurrentMap<String, ResolvedAttribute>> resolved =
+                lookupConfig ? configAttributes : serverAttributes;
+        ConcurrentMap<String, ResolvedAttribute> deviceAttributes = resolved.get(deviceId);
+        if (deviceAttributes != null) {
+            ResolvedAttribute attribute = deviceAttributes.get(attributeName);
+            if (attribute != null) {
+                return attribute;
+            }
+        }
+        long version = attributesVersion.get();
+        ResolvedAttribute attribute = new ResolvedAttribute(lookupAttribute(deviceId, attributeName, lookupConfig));
+        if (getDeviceById(deviceId) != null) {
+            if (deviceAttributes == null) {
+                deviceAttributes = new ConcurrentHashMap<>();
+                ConcurrentMap<String, ResolvedAttribute> existing = resolved.putIfAbsent(deviceId, deviceAttributes);
+                if (existing != null) {
+                    deviceAttributes = existing;
+                }
+            }
+            deviceAttributes.put(attributeName, attribute);
+            // value may have been resolved from data that was changed in the meantime
+            if (attributesVersion.get() != version) {
+                deviceAttributes.remove(attributeName, attribute);
+            }
+        }
+        return attribute;
+    }
+
+    /**
+     * Called after device or group data has changed, so a lookup that read the old data sees the version change.
+     */
+    private void invalidateAttributes(long deviceId) {
+        attributesVersion.incrementAndGet();
+        serverAttributes.remove(deviceId);
+        configAttributes.remove(deviceId);
+    }
+
+    private boolean isInGroup(Device device, long groupId) {
+        long currentGroupId = device.getGroupId();
+        Set<Long> visited = new HashSet<>();
+        while (currentGroupId != 0 && visited.add(currentGroupId)) {
+            if (currentGroupId == groupId) {
+                return true;
+            }
+            Group group = getGroupById(currentGroupId);
+            currentGroupId = group != null ? group.getGroupId() : 0;
+        }
+        return false;
+    }
+
+    private void invalidateGroupAttributes(long groupId) {
+        attributesVersion.incrementAndGet();
+        for (Device device : devicesById.values()) {
+            if (isInGroup(device, groupId)) {
+                invalidateAttributes(device.getId());
+            }
+        }
+    }
+
+    /**
+     * Drops resolved values that could come from server attributes, called when the server is updated.
+     */
+    public void invalidateServerAttributes() {
+        attributesVersion.incrementAndGet();
+        serverAttributes.clear();
     }
 
     public boolean lookupAttributeBoolean(
             long deviceId, String attributeName, boolean defaultValue, boolean lookupConfig) {
-        String result = lookupAttribute(deviceId, attributeName, lookupConfig);
-        if (result != null) {
-            return Boolean.parseBoolean(result);
+        ResolvedAttribute attribute = resolveAttribute(deviceId, attributeName, lookupConfig);
+        if (attribute.value != null) {
+            Object parsed = attribute.parsed;
+            if (!(parsed instanceof Boolean)) {
+                parsed = Boolean.parseBoolean(attribute.value);
+                attribute.parsed = parsed;
+            }
+            return (Boolean) parsed;
         }
         return defaultValue;
     }
 
     public String lookupAttributeString(
             long deviceId, String attributeName, String defaultValue, boolean lookupConfig) {
-        String result = lookupAttribute(deviceId, attributeName, lookupConfig);
-        if (result != null) {
-            return result;
+        ResolvedAttribute attribute = resolveAttribute(deviceId, attributeName, lookupConfig);
+        if (attribute.value != null) {
+            return attribute.value;
         }
         return defaultValue;
     }
 
     public int lookupAttributeInteger(long deviceId, String attributeName, int defaultValue, boolean lookupConfig) {
-        String result = lookupAttribute(deviceId, attributeName, lookupConfig);
-        if (result != null) {
-            return Integer.parseInt(result);
+        ResolvedAttribute attribute = resolveAttribute(deviceId, attributeName, lookupConfig);
+        if (attribute.value != null) {
+            Object parsed = attribute.parsed;
+            if (!(parsed instanceof Integer)) {
+                parsed = Integer.parseInt(attribute.value);
+                attribute.parsed = parsed;
+            }
+            return (Integer) parsed;
         }
         return defaultValue;
     }
 
     public long lookupAttributeLong(
             long deviceId, String attributeName, long defaultValue, boolean lookupConfig) {
-        String result = lookupAttribute(deviceId, attributeName, lookupConfig);
-        if (result != null) {
-            return Long.parseLong(result);
+        ResolvedAttribute attribute = resolveAttribute(deviceId, attributeName, lookupConfig);
+        if (attribute.value != null) {
+            Object parsed = attribute.parsed;
+            if (!(parsed instanceof Long)) {
+                parsed = Long.parseLong(attribute.value);
+                attribute.parsed = parsed;
+            }
+            return (Long) parsed;
         }
         return defaultValue;
     }
 
     public double lookupAttributeDouble(
             long deviceId, String attributeName, double defaultValue, boolean lookupConfig) {
-        String result = lookupAttribute(deviceId, attributeName, lookupConfig);
-        if (result != null) {
-            return Double.parseDouble(result);
+        ResolvedAttribute attribute = resolveAttribute(deviceId, attributeName, lookupConfig);
+        if (attribute.value != null) {
+            Object parsed = attribute.parsed;
+            if (!(parsed instanceof Double)) {
+                parsed = Double.parseDouble(attribute.value);
+                attribute.parsed = parsed;
+            }
+            return (Double) parsed;
         }
         return defaultValue;
     }
@@ -400,7 +583,7 @@ public class DeviceManager implements IdentityManager {
             }
             if (result == null) {
                 if (lookupConfig) {
-                    result = Context.getConfig().getString(attributeName);
+                    result = config.getString(attributeName);
                 } else {
                     Server server = Context.getPermissionsManager().getServer();
                     result = server.getString(attributeName);
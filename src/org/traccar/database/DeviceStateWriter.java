@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.helper.Log;
+import org.traccar.model.Device;
+import org.traccar.model.Position;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Write-behind stage for frequently updated device columns. Only the newest state of each device is kept and dirty
+ * rows are written in periodic batches. A marker file exists while unwritten state may be held in memory; if it is
+ * found on startup, positions stored after the last flush are recovered from the positions table. Status and last
+ * update time are not recovered, they are refreshed by the next message from the device.
+ */
+public class DeviceStateWriter extends TimerTask {
+
+    public static final long DEFAULT_DELAY = 5000;
+    public static final String DEFAULT_MARKER = "./data/write-behind.marker";
+
+    private final DataManager dataManager;
+    private final File marker;
+
+    private final ConcurrentMap<Long, Position> latestPositions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Device> deviceStatuses = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the marker for this run. Returns false if the marker could not be created, which includes a marker left
+     * by a run that stopped without writing its state.
+     */
+    public static boolean createMarker(File marker) {
+        try {
+            File directory = marker.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                Log.warning("Failed to create directory " + directory);
+                return false;
+            }
+            return marker.createNewFile();
+        } catch (IOException error) {
+            Log.warning(error);
+            return false;
+        }
+    }
+
+    public DeviceStateWriter(DataManager dataManager, long delay, File marker) {
+        this.dataManager = dataManager;
+        this.marker = marker;
+        new Timer("device-state-writer", true).schedule(this, delay, delay);
+    }
+
+    public void updateLatestPosition(Position position) {
+        latestPositions.put(position.getDeviceId(), position);
+    }
+
+    public void updateDeviceStatus(Device device) {
+        deviceStatuses.put(device.getId(), device);
+    }
+
+    public int getPendingCount() {
+        return latestPositions.size() + deviceStatuses.size();
+    }
+
+    private static <T> Map<Long, T> drain(ConcurrentMap<Long, T> map) {
+        Map<Long, T> result = new HashMap<>();
+        for (Map.Entry<Long, T> entry : map.entrySet()) {
+            if (map.remove(entry.getKey(), entry.getValue())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static <T> void restore(ConcurrentMap<Long, T> map, Map<Long, T> pending) {
+        for (Map.Entry<Long, T> entry : pending.entrySet()) {
+            map.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized void flush() {
+        Map<Long, Position> positions = drain(latestPositions);
+        if (!positions.isEmpty()) {
+            try {
+                dataManager.updateLatestPositions(positions.values());
+            } catch (SQLException error) {
+                Log.warning(error);
+                restore(latestPositions, positions);
+            }
+        }
+        Map<Long, Device> devices = drain(deviceStatuses);
+        if (!devices.isEmpty()) {
+            try {
+                dataManager.updateDeviceStatuses(devices.values());
+            } catch (SQLException error) {
+                Log.warning(error);
+                restore(deviceStatuses, devices);
+            }
+        }
+    }
+
+    /**
+     * Writes pending state and removes the marker if nothing is left unwritten.
+     */
+    public void close() {
+        flush();
+        int pendingCount = getPendingCount();
+        if (pendingCount > 0) {
+            Log.warning(pendingCount + " device updates were not written");
+        } else if (!marker.delete()) {
+            Log.warning("Failed to delete " + marker);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            flush();
+        } catch (RuntimeException error) {
+            Log.warning(error);
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.traccar.Context;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class JsonAttributesCodec implements AttributesCodec {
+
+    private static final TypeReference<Map<String, Object>> TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
+    @Override
+    public String encode(Map<?, ?> attributes) throws IOException {
+        return Context.getObjectMapper().writeValueAsString(attributes);
+    }
+
+    @Override
+    public Map<String, Object> decode(String value) throws IOException {
+        return Context.getObjectMapper().readValue(value, TYPE);
+    }
+
+}
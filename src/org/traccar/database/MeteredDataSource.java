@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Records how long callers wait for a connection from the wrapped pool.
+ */
+public class MeteredDataSource implements DataSource {
+
+    private final DataSource dataSource;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    public MeteredDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTime.get());
+    }
+
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+    }
+
+    public void resetMetrics() {
+        connections.set(0);
+        waitTime.set(0);
+        maxWaitTime.set(0);
+    }
+
+    private void record(long startTime) {
+        long duration = System.nanoTime() - startTime;
+        connections.incrementAndGet();
+        waitTime.addAndGet(duration);
+        long max = maxWaitTime.get();
+        while (duration > max && !maxWaitTime.compareAndSet(max, duration)) {
+            max = maxWaitTime.get();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } finally {
+            record(startTime);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long startTime = System.nanoTime();
+        try {
+            return dataSource.getConnection(username, password);
+        } finally {
+            record(startTime);
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(dataSource)) {
+            return iface.cast(dataSource);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(dataSource) || dataSource.isWrapperFor(iface);
+    }
+
+}
@@ -16,7 +16,9 @@
 package org.traccar.database;
 
 import org.traccar.Context;
+import org.traccar.helper.ExpiringCache;
 import org.traccar.helper.Log;
+import org.traccar.helper.LongSet;
 import org.traccar.model.Device;
 import org.traccar.model.DevicePermission;
 import org.traccar.model.Group;
@@ -25,14 +27,23 @@ import org.traccar.model.Server;
 import org.traccar.model.User;
 import org.traccar.model.UserPermission;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PermissionsManager {
 
@@ -41,62 +52,182 @@ public class PermissionsManager {
     private volatile Server server;
 
     private final Map<Long, User> users = new ConcurrentHashMap<>();
-    private final Map<String, Long> usersTokens = new HashMap<>();
+    private final Map<String, Long> usersTokens = new ConcurrentHashMap<>();
 
-    private final Map<Long, Set<Long>> groupPermissions = new HashMap<>();
-    private final Map<Long, Set<Long>> devicePermissions = new HashMap<>();
-    private final Map<Long, Set<Long>> deviceUsers = new HashMap<>();
-    private final Map<Long, Set<Long>> groupDevices = new HashMap<>();
+    private static final class VerifiedLogin {
 
-    private final Map<Long, Set<Long>> userPermissions = new HashMap<>();
+        private final long userId;
+        private final long time;
 
-    public Set<Long> getGroupPermissions(long userId) {
-        if (!groupPermissions.containsKey(userId)) {
-            groupPermissions.put(userId, new HashSet<Long>());
+        private VerifiedLogin(long userId, long time) {
+            this.userId = userId;
+            this.time = time;
         }
-        return groupPermissions.get(userId);
+
     }
 
-    public Set<Long> getDevicePermissions(long userId) {
-        if (!devicePermissions.containsKey(userId)) {
-            devicePermissions.put(userId, new HashSet<Long>());
+    private final long loginCacheTimeout;
+    private final ExpiringCache.Metrics loginCacheMetrics = new ExpiringCache.Metrics();
+    private final ExpiringCache<String, VerifiedLogin> loginCache;
+    private final SecretKeySpec loginCacheKey;
+    private final AtomicLong loginCacheVersion = new AtomicLong();
+
+    private final AtomicLong logins = new AtomicLong();
+    private final AtomicLong loginTime = new AtomicLong();
+    private final AtomicLong maxLoginTime = new AtomicLong();
+
+    /**
+     * Compiled device and group permissions. Snapshots are never modified after publishing, so readers need no locks
+     * and writers build a new snapshot to the side and swap it in.
+     */
+    private static final class Permissions {
+
+        private final Map<Long, LongSet> groupGroups;
+        private final Map<Long, LongSet> groupDevices;
+
+        private final Map<Long, LongSet> userGroups;
+        private final Map<Long, LongSet> userDevices;
+
+        private final Map<Long, LongSet> groupPermissions;
+        private final Map<Long, LongSet> devicePermissions;
+        private final Map<Long, LongSet> deviceUsers;
+
+        private Permissions(Map<Long, LongSet> groupGroups, Map<Long, LongSet> groupDevices) {
+            this.groupGroups = groupGroups;
+            this.groupDevices = groupDevices;
+            userGroups = new HashMap<>();
+            userDevices = new HashMap<>();
+            groupPermissions = new HashMap<>();
+            devicePermissions = new HashMap<>();
+            deviceUsers = new HashMap<>();
+        }
+
+        private Permissions(Permissions other) {
+            groupGroups = other.groupGroups;
+            groupDevices = other.groupDevices;
+            userGroups = new HashMap<>(other.userGroups);
+            userDevices = new HashMap<>(other.userDevices);
+            groupPermissions = new HashMap<>(other.groupPermissions);
+            devicePermissions = new HashMap<>(other.devicePermissions);
+            deviceUsers = new HashMap<>(other.deviceUsers);
+        }
+
+        private static LongSet get(Map<Long, LongSet> map, long key) {
+            LongSet result = map.get(key);
+            return result != null ? result : LongSet.EMPTY;
+        }
+
+        private static void put(Map<Long, LongSet> map, long key, LongSet value) {
+            if (value.isEmpty()) {
+                map.remove(key);
+            } else {
+                map.put(key, value);
+            }
+        }
+
+        /**
+         * Recomputes effective permissions of one user from direct links and patches device users accordingly.
+         */
+        private void resolve(long userId) {
+            Set<Long> groups = new HashSet<>();
+            Set<Long> devices = new HashSet<>(get(userDevices, userId));
+            for (long groupId : get(userGroups, userId)) {
+                groups.add(groupId);
+                groups.addAll(get(groupGroups, groupId));
+                devices.addAll(get(groupDevices, groupId));
+            }
+            put(groupPermissions, userId, LongSet.of(groups));
+
+            LongSet oldDevices = get(devicePermissions, userId);
+            LongSet newDevices = LongSet.of(devices);
+            put(devicePermissions, userId, newDevices);
+            for (long deviceId : oldDevices) {
+                if (!newDevices.contains(deviceId)) {
+                    put(deviceUsers, deviceId, get(deviceUsers, deviceId).without(userId));
+                }
+            }
+            for (long deviceId : newDevices) {
+                if (!oldDevices.contains(deviceId)) {
+                    put(deviceUsers, deviceId, get(deviceUsers, deviceId).with(userId));
+                }
+            }
         }
-        return devicePermissions.get(userId);
+
+    }
+
+    private volatile Permissions permissions = new Permissions(
+            Collections.<Long, LongSet>emptyMap(), Collections.<Long, LongSet>emptyMap());
+
+    private volatile Map<Long, LongSet> userPermissions = Collections.emptyMap();
+
+    public Set<Long> getGroupPermissions(long userId) {
+        return Permissions.get(permissions.groupPermissions, userId);
+    }
+
+    public Set<Long> getDevicePermissions(long userId) {
+        return Permissions.get(permissions.devicePermissions, userId);
     }
 
     public Set<Long> getDeviceUsers(long deviceId) {
-        if (!deviceUsers.containsKey(deviceId)) {
-            deviceUsers.put(deviceId, new HashSet<Long>());
-        }
-        return deviceUsers.get(deviceId);
+        return Permissions.get(permissions.deviceUsers, deviceId);
     }
 
     public Set<Long> getGroupDevices(long groupId) {
-        if (!groupDevices.containsKey(groupId)) {
-            groupDevices.put(groupId, new HashSet<Long>());
-        }
-        return groupDevices.get(groupId);
+        return Permissions.get(permissions.groupDevices, groupId);
     }
 
     public Set<Long> getUserPermissions(long userId) {
-        if (!userPermissions.containsKey(userId)) {
-            userPermissions.put(userId, new HashSet<Long>());
-        }
-        return userPermissions.get(userId);
+        return Permissions.get(userPermissions, userId);
     }
 
     public PermissionsManager(DataManager dataManager) {
         this.dataManager = dataManager;
+        loginCacheTimeout = Context.getConfig().getLong("users.loginCacheTimeout", 60) * 1000;
+        if (loginCacheTimeout > 0) {
+            loginCache = new ExpiringCache<>(
+                    Context.getConfig().getInteger("users.loginCacheSize", 1000), loginCacheTimeout, loginCacheMetrics);
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            loginCacheKey = new SecretKeySpec(key, "HmacSHA256");
+        } else {
+            loginCache = null;
+            loginCacheKey = null;
+        }
         refreshUsers();
         refreshPermissions();
         refreshUserPermissions();
     }
 
+    public ExpiringCache.Metrics getLoginCacheMetrics() {
+        return loginCacheMetrics;
+    }
+
+    public long getLogins() {
+        return logins.get();
+    }
+
+    public long getLoginTime() {
+        return TimeUnit.NANOSECONDS.toMicros(loginTime.get());
+    }
+
+    public long getMaxLoginTime() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLoginTime.get());
+    }
+
+    public void resetMetrics() {
+        logins.set(0);
+        loginTime.set(0);
+        maxLoginTime.set(0);
+    }
+
     public final void refreshUsers() {
         users.clear();
         usersTokens.clear();
         try {
             server = dataManager.getServer();
+            if (Context.getDeviceManager() != null) {
+                Context.getDeviceManager().invalidateServerAttributes();
+            }
             for (User user : dataManager.getUsers()) {
                 users.put(user.getId(), user);
                 if (user.getToken() != null) {
@@ -106,57 +237,119 @@ public class PermissionsManager {
         } catch (SQLException error) {
             Log.warning(error);
         }
+        clearLoginCache();
     }
 
-    public final void refreshUserPermissions() {
-        userPermissions.clear();
+    public final synchronized void refreshUserPermissions() {
         try {
+            Map<Long, Set<Long>> managedUsers = new HashMap<>();
             for (UserPermission permission : dataManager.getUserPermissions()) {
-                getUserPermissions(permission.getUserId()).add(permission.getManagedUserId());
+                Set<Long> userIds = managedUsers.get(permission.getUserId());
+                if (userIds == null) {
+                    userIds = new HashSet<>();
+                    managedUsers.put(permission.getUserId(), userIds);
+                }
+                userIds.add(permission.getManagedUserId());
             }
+            Map<Long, LongSet> newUserPermissions = new HashMap<>();
+            for (Map.Entry<Long, Set<Long>> entry : managedUsers.entrySet()) {
+                newUserPermissions.put(entry.getKey(), LongSet.of(entry.getValue()));
+            }
+            userPermissions = newUserPermissions;
         } catch (SQLException error) {
             Log.warning(error);
         }
     }
 
-    public final void refreshPermissions() {
-        groupPermissions.clear();
-        devicePermissions.clear();
+    public final synchronized void refreshPermissions() {
         try {
-            GroupTree groupTree = new GroupTree(Context.getDeviceManager().getAllGroups(),
-                    Context.getDeviceManager().getAllDevices());
-            for (GroupPermission permission : dataManager.getGroupPermissions()) {
-                Set<Long> userGroupPermissions = getGroupPermissions(permission.getUserId());
-                Set<Long> userDevicePermissions = getDevicePermissions(permission.getUserId());
-                userGroupPermissions.add(permission.getGroupId());
-                for (Group group : groupTree.getGroups(permission.getGroupId())) {
-                    userGroupPermissions.add(group.getId());
+            Collection<Group> groups = Context.getDeviceManager().getAllGroups();
+            GroupTree groupTree = new GroupTree(groups, Context.getDeviceManager().getAllDevices());
+            Map<Long, LongSet> groupGroups = new HashMap<>();
+            Map<Long, LongSet> groupDevices = new HashMap<>();
+            for (Group group : groups) {
+                Set<Long> ids = new HashSet<>();
+                for (Group child : groupTree.getGroups(group.getId())) {
+                    ids.add(child.getId());
                 }
-                for (Device device : groupTree.getDevices(permission.getGroupId())) {
-                    userDevicePermissions.add(device.getId());
+                Permissions.put(groupGroups, group.getId(), LongSet.of(ids));
+                ids.clear();
+                for (Device device : groupTree.getDevices(group.getId())) {
+                    ids.add(device.getId());
                 }
+                Permissions.put(groupDevices, group.getId(), LongSet.of(ids));
+            }
+
+            Permissions newPermissions = new Permissions(groupGroups, groupDevices);
+            for (GroupPermission permission : dataManager.getGroupPermissions()) {
+                newPermissions.userGroups.put(permission.getUserId(),
+                        Permissions.get(newPermissions.userGroups, permission.getUserId())
+                                .with(permission.getGroupId()));
             }
             for (DevicePermission permission : dataManager.getDevicePermissions()) {
-                getDevicePermissions(permission.getUserId()).add(permission.getDeviceId());
+                newPermissions.userDevices.put(permission.getUserId(),
+                        Permissions.get(newPermissions.userDevices, permission.getUserId())
+                                .with(permission.getDeviceId()));
             }
-
-            groupDevices.clear();
-            for (Group group : Context.getDeviceManager().getAllGroups()) {
-                for (Device device : groupTree.getDevices(group.getId())) {
-                    getGroupDevices(group.getId()).add(device.getId());
-                }
+            Set<Long> userIds = new HashSet<>(newPermissions.userGroups.keySet());
+            userIds.addAll(newPermissions.userDevices.keySet());
+            for (long userId : userIds) {
+                newPermissions.resolve(userId);
             }
-
+            permissions = newPermissions;
         } catch (SQLException error) {
             Log.warning(error);
         }
+    }
 
-        deviceUsers.clear();
-        for (Map.Entry<Long, Set<Long>> entry : devicePermissions.entrySet()) {
-            for (long deviceId : entry.getValue()) {
-                getDeviceUsers(deviceId).add(entry.getKey());
-            }
-        }
+    public synchronized void linkDevice(long userId, long deviceId) throws SQLException {
+        dataManager.linkDevice(userId, deviceId);
+        Permissions newPermissions = new Permissions(permissions);
+        Permissions.put(newPermissions.userDevices, userId,
+                Permissions.get(newPermissions.userDevices, userId).with(deviceId));
+        newPermissions.resolve(userId);
+        permissions = newPermissions;
+    }
+
+    public synchronized void unlinkDevice(long userId, long deviceId) throws SQLException {
+        dataManager.unlinkDevice(userId, deviceId);
+        Permissions newPermissions = new Permissions(permissions);
+        Permissions.put(newPermissions.userDevices, userId,
+                Permissions.get(newPermissions.userDevices, userId).without(deviceId));
+        newPermissions.resolve(userId);
+        permissions = newPermissions;
+    }
+
+    public synchronized void linkGroup(long userId, long groupId) throws SQLException {
+        dataManager.linkGroup(userId, groupId);
+        Permissions newPermissions = new Permissions(permissions);
+        Permissions.put(newPermissions.userGroups, userId,
+                Permissions.get(newPermissions.userGroups, userId).with(groupId));
+        newPermissions.resolve(userId);
+        permissions = newPermissions;
+    }
+
+    public synchronized void unlinkGroup(long userId, long groupId) throws SQLException {
+        dataManager.unlinkGroup(userId, groupId);
+        Permissions newPermissions = new Permissions(permissions);
+        Permissions.put(newPermissions.userGroups, userId,
+                Permissions.get(newPermissions.userGroups, userId).without(groupId));
+        newPermissions.resolve(userId);
+        permissions = newPermissions;
+    }
+
+    public synchronized void linkUser(long userId, long managedUserId) throws SQLException {
+        dataManager.linkUser(userId, managedUserId);
+        Map<Long, LongSet> newUserPermissions = new HashMap<>(userPermissions);
+        Permissions.put(newUserPermissions, userId, Permissions.get(newUserPermissions, userId).with(managedUserId));
+        userPermissions = newUserPermissions;
+    }
+
+    public synchronized void unlinkUser(long userId, long managedUserId) throws SQLException {
+        dataManager.unlinkUser(userId, managedUserId);
+        Map<Long, LongSet> newUserPermissions = new HashMap<>(userPermissions);
+        Permissions.put(newUserPermissions, userId, Permissions.get(newUserPermissions, userId).without(managedUserId));
+        userPermissions = newUserPermissions;
     }
 
     public boolean isAdmin(long userId) {
@@ -181,14 +374,14 @@ public class PermissionsManager {
 
     public void checkManager(long userId, long managedUserId) throws SecurityException {
         checkManager(userId);
-        if (!userPermissions.get(userId).contains(managedUserId)) {
+        if (!getUserPermissions(userId).contains(managedUserId)) {
             throw new SecurityException("User access denied");
         }
     }
 
     public void checkUserLimit(long userId) throws SecurityException {
         int userLimit = users.get(userId).getUserLimit();
-        if (userLimit != -1 && userPermissions.get(userId).size() >= userLimit) {
+        if (userLimit != -1 && getUserPermissions(userId).size() >= userLimit) {
             throw new SecurityException("Manager user limit reached");
         }
     }
@@ -328,6 +521,9 @@ public class PermissionsManager {
     public void updateServer(Server server) throws SQLException {
         dataManager.updateServer(server);
         this.server = server;
+        if (Context.getDeviceManager() != null) {
+            Context.getDeviceManager().invalidateServerAttributes();
+        }
     }
 
     public Collection<User> getAllUsers() {
@@ -358,12 +554,15 @@ public class PermissionsManager {
         if (user.getToken() != null) {
             usersTokens.put(user.getToken(), user.getId());
         }
-        refreshPermissions();
     }
 
     public void updateUser(User user) throws SQLException {
         dataManager.updateUser(user);
         User old = users.get(user.getId());
+        if (user.getHashedPassword() == null) {
+            user.setHashedPassword(old.getHashedPassword());
+            user.setSalt(old.getSalt());
+        }
         users.put(user.getId(), user);
         if (user.getToken() != null) {
             usersTokens.put(user.getToken(), user.getId());
@@ -371,22 +570,94 @@ public class PermissionsManager {
         if (old.getToken() != null && !old.getToken().equals(user.getToken())) {
             usersTokens.remove(old.getToken());
         }
-        refreshPermissions();
+        clearLoginCache();
     }
 
     public void removeUser(long userId) throws SQLException {
         dataManager.removeUser(userId);
         usersTokens.remove(users.get(userId).getToken());
         users.remove(userId);
+        clearLoginCache();
         refreshPermissions();
         refreshUserPermissions();
     }
 
+    /**
+     * Called after users have changed, so a login that verified the old data sees the version change.
+     */
+    private void clearLoginCache() {
+        loginCacheVersion.incrementAndGet();
+        if (loginCache != null) {
+            loginCache.clear();
+        }
+    }
+
+    private String getLoginKey(String email, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(loginCacheKey);
+            mac.update(email.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return DatatypeConverter.printHexBinary(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new SecurityException(e);
+        }
+    }
+
+    /**
+     * Verifies credentials, remembering successful checks for a short time so that clients sending the same
+     * credentials with every request skip the database query and password hashing. Cached entries are keyed by a
+     * keyed hash, so the cache holds no passwords, and are dropped whenever users change. Users are looked up in
+     * memory and only unknown emails go to the database.
+     */
     public User login(String email, String password) throws SQLException {
-        User user = dataManager.login(email, password);
-        if (user != null) {
-            checkUserEnabled(user.getId());
-            return users.get(user.getId());
+        long startTime = System.nanoTime();
+        try {
+            String key = null;
+            if (loginCache != null) {
+                key = getLoginKey(email, password);
+                VerifiedLogin login = loginCache.get(key);
+                if (login != null && System.currentTimeMillis() - login.time <= loginCacheTimeout
+                        && users.containsKey(login.userId)) {
+                    checkUserEnabled(login.userId);
+                    return users.get(login.userId);
+                }
+            }
+            long version = loginCacheVersion.get();
+            User user = getUserByEmail(email);
+            if (user == null) {
+                user = dataManager.login(email, password);
+            } else if (!user.isPasswordValid(password)) {
+                user = null;
+            }
+            if (user != null) {
+                checkUserEnabled(user.getId());
+                if (loginCache != null) {
+                    loginCache.put(key, new VerifiedLogin(user.getId(), System.currentTimeMillis()));
+                    // password may have been changed while it was verified
+                    if (loginCacheVersion.get() != version) {
+                        loginCache.remove(key);
+                    }
+                }
+                return users.get(user.getId());
+            }
+            return null;
+        } finally {
+            long duration = System.nanoTime() - startTime;
+            logins.incrementAndGet();
+            loginTime.addAndGet(duration);
+            long max = maxLoginTime.get();
+            while (duration > max && !maxLoginTime.compareAndSet(max, duration)) {
+                max = maxLoginTime.get();
+            }
+        }
+    }
+
+    private User getUserByEmail(String email) {
+        for (User user : users.values()) {
+            if (email.equals(user.getEmail()) && user.getHashedPassword() != null) {
+                return user;
+            }
         }
         return null;
     }
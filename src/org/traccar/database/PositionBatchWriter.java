@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.helper.Log;
+import org.traccar.model.Position;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit stage for position inserts. Callers block until the batch containing their position is written, so
+ * the generated id is available to the rest of the pipeline as before. Positions queued while a batch is being
+ * written go into the next one; a non-zero delay additionally waits for more positions before flushing.
+ */
+public class PositionBatchWriter implements Runnable {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_BATCH_DELAY = 0;
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private static final long POLL_INTERVAL = 1000;
+    private static final long WRITE_TIMEOUT = 60000;
+
+    private static final class PendingPosition {
+
+        private final Position position;
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private SQLException error;
+
+        private PendingPosition(Position position) {
+            this.position = position;
+        }
+
+        private void complete(SQLException error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+    }
+
+    private final DataManager dataManager;
+    private final int batchSize;
+    private final long batchDelay;
+    private final BlockingQueue<PendingPosition> queue;
+    private final Thread thread;
+
+    /**
+     * Guards the closed check together with the queue offer, so nothing can be queued after the writer is closed.
+     */
+    private final Object lock = new Object();
+    private volatile boolean closed;
+
+    public PositionBatchWriter(DataManager dataManager, int batchSize, long batchDelay, int queueSize) {
+        this.dataManager = dataManager;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+
+        thread = new Thread(this, "position-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public void addPosition(Position position) throws SQLException {
+        PendingPosition pendingPosition = new PendingPosition(position);
+        boolean queued;
+        synchronized (lock) {
+            queued = !closed && queue.offer(pendingPosition);
+        }
+        if (!queued) {
+            dataManager.insertPosition(position);
+            return;
+        }
+        try {
+            if (!pendingPosition.latch.await(WRITE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Position write timed out");
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(error);
+        }
+        if (pendingPosition.error != null) {
+            throw pendingPosition.error;
+        }
+    }
+
+    /**
+     * Stops batching new positions and waits until already queued ones are written.
+     */
+    public void close(long timeout) {
+        synchronized (lock) {
+            closed = true;
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException error) {
+            Log.warning(error);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<PendingPosition> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingPosition first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + batchDelay;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) == 0) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        PendingPosition next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                writeBatch(batch);
+            } catch (InterruptedException error) {
+                Log.warning(error);
+                synchronized (lock) {
+                    closed = true;
+                }
+                queue.drainTo(batch);
+                fail(batch, new SQLException(error));
+            } catch (RuntimeException error) {
+                Log.warning(error);
+                fail(batch, new SQLException(error));
+            } finally {
+                batch.clear();
+            }
+        }
+        queue.drainTo(batch);
+        fail(batch, new SQLException("Position writer is closed"));
+    }
+
+    private void writeBatch(List<PendingPosition> batch) {
+        List<Position> positions = new ArrayList<>(batch.size());
+        for (PendingPosition pendingPosition : batch) {
+            positions.add(pendingPosition.position);
+        }
+        try {
+            dataManager.insertPositions(positions);
+        } catch (SQLException error) {
+            if (batch.size() == 1 || isConnectionError(error)) {
+                fail(batch, error);
+                return;
+            }
+            Log.warning(error);
+            writeSeparately(batch);
+            return;
+        }
+        for (PendingPosition pendingPosition : batch) {
+            pendingPosition.complete(null);
+        }
+    }
+
+    private static void fail(List<PendingPosition> batch, SQLException error) {
+        for (PendingPosition pendingPosition : batch) {
+            pendingPosition.complete(error);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Connection failures would only repeat for every row, so they fail the whole batch at once.
+     */
+    private static boolean isConnectionError(SQLException error) {
+        return error instanceof SQLTransientConnectionException
+                || error instanceof SQLNonTransientConnectionException
+                || error.getSQLState() != null && error.getSQLState().startsWith("08");
+    }
+
+    /**
+     * Retries a failed batch row by row, so a single bad position fails only its own caller. Rows after a connection
+     * failure are not tried any more.
+     */
+    private void writeSeparately(List<PendingPosition> batch) {
+        SQLException connectionError = null;
+        for (PendingPosition pendingPosition : batch) {
+            SQLException error = connectionError;
+            if (error == null && pendingPosition.position.getId() == 0) {
+                try {
+                    dataManager.insertPosition(pendingPosition.position);
+                } catch (SQLException e) {
+                    error = e;
+                    if (isConnectionError(e)) {
+                        connectionError = e;
+                    }
+                }
+            }
+            pendingPosition.complete(error);
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.Context;
+import org.traccar.helper.Log;
+import org.traccar.model.Device;
+import org.traccar.model.Position;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes positions older than the retention period of each device. Rows are removed in chunks keyed by position id
+ * over the device and id index: every chunk reads the ids and server times of the next rows of the device, and the
+ * expired ones are deleted by id range, so no statement touches more than a chunk. The walk of a device stops at its
+ * first position that is not expired yet. Deleted rows are gone, so the next run, also after a restart, starts right
+ * where the previous one stopped without storing a position. With a chunk size of zero, the single statement used
+ * before is run with the global retention period.
+ */
+public class PositionRetentionTask extends TimerTask {
+
+    public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+    private final DataManager dataManager;
+    private final int chunkSize;
+    private final int rate;
+
+    private volatile long lastRunDuration;
+
+    public PositionRetentionTask(DataManager dataManager) {
+        this.dataManager = dataManager;
+        chunkSize = Context.getConfig().getInteger("database.retention.chunkSize", DEFAULT_CHUNK_SIZE);
+        rate = Context.getConfig().getInteger("database.retention.rate");
+    }
+
+    public long getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+    private void throttle(long startTime, int count) throws InterruptedException {
+        if (rate > 0 && count > 0) {
+            long delay = count * 1000L / rate - (System.currentTimeMillis() - startTime);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private long clearAll() {
+        int historyDays = Context.getConfig().getInteger("database.positionsHistoryDays");
+        if (historyDays > 0) {
+            try {
+                return dataManager.deletePositions(
+                        new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(historyDays)));
+            } catch (SQLException error) {
+                Log.warning(error);
+            }
+        }
+        return 0;
+    }
+
+    private long clearDevice(Device device) throws SQLException, InterruptedException {
+
+        int historyDays = Context.getDeviceManager().lookupAttributeInteger(
+                device.getId(), "database.positionsHistoryDays", 0, true);
+        if (historyDays <= 0) {
+            return 0;
+        }
+        Date serverTime = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(historyDays));
+
+        long deleted = 0;
+        long fromId = 0;
+        while (true) {
+            Collection<Position> positions = dataManager.getPositionsChunk(device.getId(), fromId, chunkSize);
+            long toId = fromId;
+            boolean expired = true;
+            for (Position position : positions) {
+                if (!position.getServerTime().before(serverTime)) {
+                    expired = false;
+                    break;
+                }
+                toId = position.getId();
+            }
+            if (toId > fromId) {
+                long startTime = System.currentTimeMillis();
+                int count = dataManager.deletePositions(
+                        device.getId(), device.getPositionId(), fromId, toId, serverTime);
+                deleted += count;
+                throttle(startTime, count);
+            }
+            if (!expired || positions.size() < chunkSize) {
+                return deleted;
+            }
+            fromId = toId;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (Context.getDeviceManager() == null) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        try {
+            long deleted = 0;
+            if (chunkSize <= 0) {
+                deleted = clearAll();
+            } else {
+                List<Device> devices = new ArrayList<>(Context.getDeviceManager().getAllDevices());
+                for (Device device : devices) {
+                    try {
+                        deleted += clearDevice(device);
+                    } catch (SQLException | RuntimeException error) {
+                        Log.warning(error);
+                    }
+                }
+            }
+            if (Context.getStatisticsManager() != null) {
+                Context.getStatisticsManager().registerPositionsDeleted(deleted);
+            }
+            if (deleted > 0) {
+                Log.info("Deleted " + deleted + " old positions");
+            }
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException error) {
+            Log.warning(error);
+        } finally {
+            lastRunDuration = System.currentTimeMillis() - startTime;
+        }
+    }
+
+}
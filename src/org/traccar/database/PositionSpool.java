@@ -0,0 +1,470 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.Context;
+import org.traccar.helper.Log;
+import org.traccar.model.Position;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal for positions that could not be stored in time. Records are kept in memory mapped segment
+ * files and replayed in order with batched inserts once the database accepts writes again. Each record carries a
+ * checksum, and the read position is saved after every replayed batch, so a crash loses at most the record that
+ * was being written and may store the last replayed batch twice. If a batch fails while the database is reachable,
+ * its rows are stored one by one and rows that still fail are moved to a quarantine file, as are records that cannot
+ * be decoded. Stampings are written after their position and retried while the database is unavailable; positions
+ * whose stampings fail while it is reachable are moved to a separate file. Spooled positions that already have an id
+ * only get their stampings written.
+ *
+ * <p>Segments are not forced to disk, so records survive a crash of the process but not a crash of the operating
+ * system or a power loss. Only the checkpoint file is written synchronously.</p>
+ */
+public class PositionSpool implements Runnable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    public static final long DEFAULT_LATENCY = 1000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_RETRY_DELAY = 5000;
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String QUARANTINE_FILE = "quarantine.json";
+    private static final String STAMPINGS_FILE = "stampings.json";
+    private static final int HEADER_SIZE = 8;
+
+    private final DataManager dataManager;
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSegments;
+    private final long latency;
+    private final int batchSize;
+    private final long retryDelay;
+    private final RandomAccessFile checkpoint;
+
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private long writeSegment;
+    private int writeOffset;
+    private long readSegment;
+    private int readOffset;
+    private int count;
+    private long dropped;
+    private long quarantined;
+
+    private volatile boolean active;
+
+    private final Set<Position> stamped = Collections.newSetFromMap(new IdentityHashMap<Position, Boolean>());
+
+    public PositionSpool(DataManager dataManager, File directory, int segmentSize, long maxSize, long latency,
+            int batchSize, long retryDelay) throws IOException {
+        this.dataManager = dataManager;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(maxSize / segmentSize, 2);
+        this.latency = latency;
+        this.batchSize = batchSize;
+        this.retryDelay = retryDelay;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + directory);
+        }
+        checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rwd");
+        recover();
+
+        Thread thread = new Thread(this, "position-spool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private File getSegmentFile(long index) {
+        return new File(directory, String.format("%016d", index) + SEGMENT_SUFFIX);
+    }
+
+    private MappedByteBuffer openSegment(long index) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(getSegmentFile(index), "rw")) {
+            file.setLength(segmentSize);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segments.put(index, buffer);
+            return buffer;
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        for (int i = offset; i < offset + length; i++) {
+            crc.update(buffer.get(i));
+        }
+        return (int) crc.getValue();
+    }
+
+    private int readRecordLength(ByteBuffer buffer, int offset) {
+        if (offset + HEADER_SIZE > segmentSize) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_SIZE + length > segmentSize
+                || checksum(buffer, offset + HEADER_SIZE, length) != buffer.getInt(offset + 4)) {
+            return 0;
+        }
+        return length;
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            openSegment(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+        }
+
+        if (checkpoint.length() >= 12) {
+            checkpoint.seek(0);
+            readSegment = checkpoint.readLong();
+            readOffset = checkpoint.readInt();
+        }
+        if (segments.isEmpty()) {
+            openSegment(readSegment);
+        } else if (!segments.containsKey(readSegment)) {
+            readSegment = segments.firstKey();
+            readOffset = 0;
+        }
+        while (segments.firstKey() < readSegment) {
+            deleteSegment(segments.firstKey());
+        }
+
+        for (Map.Entry<Long, MappedByteBuffer> entry : segments.entrySet()) {
+            int offset = entry.getKey() == readSegment ? readOffset : 0;
+            int length;
+            while ((length = readRecordLength(entry.getValue(), offset)) > 0) {
+                offset += HEADER_SIZE + length;
+                count += 1;
+            }
+            writeSegment = entry.getKey();
+            writeOffset = offset;
+        }
+
+        if (count > 0) {
+            active = true;
+            Log.info("Position spool contains " + count + " records");
+        }
+    }
+
+    private void deleteSegment(long index) {
+        segments.remove(index);
+        if (!getSegmentFile(index).delete()) {
+            Log.warning("Unable to delete spool segment " + index);
+        }
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public synchronized int getBacklog() {
+        return count;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized long getQuarantined() {
+        return quarantined;
+    }
+
+    public synchronized void resetMetrics() {
+        dropped = 0;
+        quarantined = 0;
+    }
+
+    public void checkLatency(long duration) {
+        if (latency > 0 && duration > latency && !active) {
+            active = true;
+            Log.warning("Database write took " + duration + " ms, spooling positions");
+        }
+    }
+
+    public boolean addPosition(Position position) {
+        active = true;
+        if (position.getServerTime() == null) {
+            position.setServerTime(new Date());
+        }
+
+        byte[] data;
+        try {
+            data = Context.getObjectMapper().writeValueAsBytes(position);
+        } catch (IOException error) {
+            Log.warning(error);
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+
+        return addRecord(data, (int) crc.getValue());
+    }
+
+    private synchronized boolean addRecord(byte[] data, int checksum) {
+        try {
+            if (writeOffset + HEADER_SIZE + data.length > segmentSize) {
+                if (HEADER_SIZE + data.length > segmentSize || segments.size() >= maxSegments) {
+                    dropped += 1;
+                    return false;
+                }
+                writeSegment += 1;
+                writeOffset = 0;
+                openSegment(writeSegment);
+            }
+        } catch (IOException error) {
+            Log.warning(error);
+            dropped += 1;
+            return false;
+        }
+
+        MappedByteBuffer buffer = segments.get(writeSegment);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(writeOffset + HEADER_SIZE);
+        payload.put(data);
+        buffer.putInt(writeOffset + 4, checksum);
+        buffer.putInt(writeOffset, data.length);
+
+        writeOffset += HEADER_SIZE + data.length;
+        count += 1;
+        notifyAll();
+        return true;
+    }
+
+    private List<Position> readBatch(long[] cursor) throws InterruptedException, IOException {
+        List<Position> positions = new ArrayList<>();
+        List<byte[]> undecodable = new ArrayList<>();
+        for (byte[] data : readRecords(cursor)) {
+            try {
+                positions.add(Context.getObjectMapper().readValue(data, Position.class));
+            } catch (IOException error) {
+                Log.warning(error);
+                undecodable.add(data);
+            }
+        }
+        if (!undecodable.isEmpty()) {
+            quarantine(QUARANTINE_FILE, undecodable);
+        }
+        return positions;
+    }
+
+    private synchronized List<byte[]> readRecords(long[] cursor) throws InterruptedException {
+        while (count == 0) {
+            active = false;
+            wait();
+        }
+
+        List<byte[]> records = new ArrayList<>();
+        long segment = readSegment;
+        int offset = readOffset;
+        while (records.size() < batchSize && (segment < writeSegment || offset < writeOffset)) {
+            ByteBuffer buffer = segments.get(segment);
+            int length = readRecordLength(buffer, offset);
+            if (length == 0) {
+                if (segment == writeSegment) {
+                    break;
+                }
+                segment = segments.higherKey(segment);
+                offset = 0;
+                continue;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(offset + HEADER_SIZE);
+            payload.get(data);
+            records.add(data);
+            offset += HEADER_SIZE + length;
+        }
+
+        cursor[0] = segment;
+        cursor[1] = offset;
+        cursor[2] = records.size();
+        return records;
+    }
+
+    private synchronized void commit(long[] cursor) throws IOException {
+        while (segments.firstKey() < cursor[0]) {
+            deleteSegment(segments.firstKey());
+        }
+        readSegment = cursor[0];
+        readOffset = (int) cursor[1];
+        count -= (int) cursor[2];
+
+        checkpoint.seek(0);
+        checkpoint.writeLong(readSegment);
+        checkpoint.writeInt(readOffset);
+    }
+
+    private void updateLatestPositions(List<Position> positions) throws SQLException {
+        DeviceManager deviceManager = Context.getDeviceManager();
+        if (deviceManager != null) {
+            for (Position position : positions) {
+                Position last = deviceManager.getLastPosition(position.getDeviceId());
+                if (position.getId() != 0 && last != null && last.getId() == 0
+                        && last.getFixTime().equals(position.getFixTime())) {
+                    last.setId(position.getId());
+                    dataManager.updateLatestPosition(last);
+                }
+            }
+        }
+    }
+
+    private void quarantine(String fileName, List<byte[]> records) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(new File(directory, fileName), true)) {
+            for (byte[] record : records) {
+                output.write(record);
+                output.write('\n');
+            }
+        }
+        synchronized (this) {
+            quarantined += records.size();
+        }
+        Log.warning("Moved " + records.size() + " spooled records to " + fileName);
+    }
+
+    private void quarantinePositions(String fileName, List<Position> positions) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (Position position : positions) {
+            records.add(Context.getObjectMapper().writeValueAsBytes(position));
+        }
+        quarantine(fileName, records);
+    }
+
+    private boolean isDatabaseAvailable() {
+        try {
+            dataManager.getServer();
+            return true;
+        } catch (SQLException error) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores positions that do not have an id yet and then stampings of all stored positions. Returns false if the
+     * database is not available, so the same positions should be retried later.
+     */
+    private boolean store(List<Position> positions) throws IOException {
+        List<Position> pending = new ArrayList<>();
+        for (Position position : positions) {
+            if (position.getId() == 0) {
+                pending.add(position);
+            }
+        }
+
+        try {
+            dataManager.insertPositions(pending);
+        } catch (SQLException error) {
+            Log.warning(error);
+            if (!isDatabaseAvailable()) {
+                return false;
+            }
+        }
+
+        List<Position> failed = new ArrayList<>();
+        for (Position position : pending) {
+            if (position.getId() == 0) {
+                try {
+                    dataManager.insertPosition(position);
+                } catch (SQLException error) {
+                    failed.add(position);
+                }
+            }
+        }
+
+        List<Position> unstamped = new ArrayList<>();
+        for (Position position : positions) {
+            if (position.getId() != 0 && stamped.add(position)) {
+                try {
+                    dataManager.addStampings(position);
+                } catch (SQLException | RuntimeException error) {
+                    Log.warning(error);
+                    stamped.remove(position);
+                    unstamped.add(position);
+                }
+            }
+        }
+
+        if (!failed.isEmpty() || !unstamped.isEmpty()) {
+            if (!isDatabaseAvailable()) {
+                return false;
+            }
+            if (!failed.isEmpty()) {
+                quarantinePositions(QUARANTINE_FILE, failed);
+            }
+            if (!unstamped.isEmpty()) {
+                quarantinePositions(STAMPINGS_FILE, unstamped);
+            }
+        }
+        stamped.clear();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long[] cursor = new long[3];
+        List<Position> positions = null;
+        while (true) {
+            try {
+                if (positions == null) {
+                    positions = readBatch(cursor);
+                }
+                if (!store(positions)) {
+                    Thread.sleep(retryDelay);
+                    continue;
+                }
+                List<Position> stored = positions;
+                positions = null;
+                commit(cursor);
+                try {
+                    updateLatestPositions(stored);
+                } catch (SQLException error) {
+                    Log.warning(error);
+                }
+            } catch (InterruptedException error) {
+                Log.warning(error);
+                return;
+            } catch (IOException | RuntimeException error) {
+                Log.warning(error);
+            }
+        }
+    }
+
+}
@@ -15,14 +15,14 @@
  */
 package org.traccar.database;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import org.traccar.Context;
 import org.traccar.helper.Log;
 import org.traccar.model.MiscFormatter;
 
 import javax.sql.DataSource;
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -32,38 +32,122 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class QueryBuilder {
 
-    private final Map<String, List<Integer>> indexMap = new HashMap<>();
+    private static final int[] NO_INDEXES = new int[0];
+
+    private static final class ParsedQuery {
+
+        private final String query;
+        private final Map<String, int[]> indexMap;
+
+        private ParsedQuery(String query, Map<String, int[]> indexMap) {
+            this.query = query;
+            this.indexMap = indexMap;
+        }
+
+    }
+
+    private abstract static class Getter {
+
+        private final String name;
+
+        private Getter(String name) {
+            this.name = name.toLowerCase();
+        }
+
+        protected abstract void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable;
+
+    }
+
+    private static final class ResultPlan {
+
+        private final int columnCount;
+        private final MethodHandle constructor;
+        private final ResultSetProcessor[] processors;
+
+        private ResultPlan(int columnCount, MethodHandle constructor, ResultSetProcessor[] processors) {
+            this.columnCount = columnCount;
+            this.constructor = constructor;
+            this.processors = processors;
+        }
+
+    }
+
+    private static final AttributesCodec JSON_CODEC = new JsonAttributesCodec();
+    private static final AttributesCodec BINARY_CODEC = new BinaryAttributesCodec(JSON_CODEC);
+
+    public static AttributesCodec getAttributesCodec() {
+        if ("binary".equals(Context.getConfig().getString("database.attributesCodec"))) {
+            return BINARY_CODEC;
+        }
+        return JSON_CODEC;
+    }
+
+    private static final Map<String, ParsedQuery> PARSED_QUERIES = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Getter[]> GETTERS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Map<String, Method>> SETTERS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Map<String, ResultPlan>> RESULT_PLANS = new ConcurrentHashMap<>();
+
+    private final Map<String, int[]> indexMap;
     private Connection connection;
     private PreparedStatement statement;
     private final String query;
     private final boolean returnGeneratedKeys;
+    private int batchSize;
 
     private QueryBuilder(DataSource dataSource, String query, boolean returnGeneratedKeys) throws SQLException {
         this.query = query;
         this.returnGeneratedKeys = returnGeneratedKeys;
         if (query != null) {
+            ParsedQuery parsedQuery = getParsedQuery(query);
+            indexMap = parsedQuery.indexMap;
             connection = dataSource.getConnection();
-            String parsedQuery = parse(query.trim(), indexMap);
             try {
                 if (returnGeneratedKeys) {
-                    statement = connection.prepareStatement(parsedQuery, Statement.RETURN_GENERATED_KEYS);
+                    statement = connection.prepareStatement(parsedQuery.query, Statement.RETURN_GENERATED_KEYS);
                 } else {
-                    statement = connection.prepareStatement(parsedQuery);
+                    statement = connection.prepareStatement(parsedQuery.query);
                 }
             } catch (SQLException error) {
                 connection.close();
                 throw error;
             }
+        } else {
+            indexMap = null;
+        }
+    }
+
+    private static ParsedQuery getParsedQuery(String query) {
+        ParsedQuery parsedQuery = PARSED_QUERIES.get(query);
+        if (parsedQuery == null) {
+            Map<String, List<Integer>> paramMap = new HashMap<>();
+            String parsed = parse(query.trim(), paramMap);
+            Map<String, int[]> indexMap = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> entry : paramMap.entrySet()) {
+                int[] indexes = new int[entry.getValue().size()];
+                int i = 0;
+                for (int index : entry.getValue()) {
+                    indexes[i++] = index;
+                }
+                indexMap.put(entry.getKey(), indexes);
+            }
+            parsedQuery = new ParsedQuery(parsed, indexMap);
+            PARSED_QUERIES.put(query, parsedQuery);
         }
+        return parsedQuery;
     }
 
     private static String parse(String query, Map<String, List<Integer>> paramMap) {
@@ -135,17 +219,39 @@ public final class QueryBuilder {
         return new QueryBuilder(dataSource, query, returnGeneratedKeys);
     }
 
-    private List<Integer> indexes(String name) {
-        name = name.toLowerCase();
-        List<Integer> result = indexMap.get(name);
+    private int[] indexes(String name) {
+        if (indexMap == null) {
+            return NO_INDEXES;
+        }
+        int[] result = indexMap.get(name.toLowerCase());
         if (result == null) {
-            result = new LinkedList<>();
+            result = NO_INDEXES;
         }
         return result;
     }
 
+    /**
+     * Limits the number of rows returned, which unlike a LIMIT clause works with every driver.
+     */
+    public QueryBuilder setMaxRows(int maxRows) throws SQLException {
+        if (query != null) {
+            try {
+                statement.setMaxRows(maxRows);
+            } catch (SQLException error) {
+                statement.close();
+                connection.close();
+                throw error;
+            }
+        }
+        return this;
+    }
+
     public QueryBuilder setBoolean(String name, boolean value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setBoolean(indexes(name), value);
+    }
+
+    private QueryBuilder setBoolean(int[] indexes, boolean value) throws SQLException {
+        for (int i : indexes) {
             try {
                 statement.setBoolean(i, value);
             } catch (SQLException error) {
@@ -158,7 +264,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setInteger(String name, int value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setInteger(indexes(name), value);
+    }
+
+    private QueryBuilder setInteger(int[] indexes, int value) throws SQLException {
+        for (int i : indexes) {
             try {
                 statement.setInt(i, value);
             } catch (SQLException error) {
@@ -175,7 +285,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setLong(String name, long value, boolean nullIfZero) throws SQLException {
-        for (int i : indexes(name)) {
+        return setLong(indexes(name), value, nullIfZero);
+    }
+
+    private QueryBuilder setLong(int[] indexes, long value, boolean nullIfZero) throws SQLException {
+        for (int i : indexes) {
             try {
                 if (value == 0 && nullIfZero) {
                     statement.setNull(i, Types.INTEGER);
@@ -192,7 +306,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setDouble(String name, double value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setDouble(indexes(name), value);
+    }
+
+    private QueryBuilder setDouble(int[] indexes, double value) throws SQLException {
+        for (int i : indexes) {
             try {
                 statement.setDouble(i, value);
             } catch (SQLException error) {
@@ -205,7 +323,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setString(String name, String value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setString(indexes(name), value);
+    }
+
+    private QueryBuilder setString(int[] indexes, String value) throws SQLException {
+        for (int i : indexes) {
             try {
                 if (value == null) {
                     statement.setNull(i, Types.VARCHAR);
@@ -222,7 +344,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setDate(String name, Date value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setDate(indexes(name), value);
+    }
+
+    private QueryBuilder setDate(int[] indexes, Date value) throws SQLException {
+        for (int i : indexes) {
             try {
                 if (value == null) {
                     statement.setNull(i, Types.TIMESTAMP);
@@ -239,7 +365,11 @@ public final class QueryBuilder {
     }
 
     public QueryBuilder setBlob(String name, byte[] value) throws SQLException {
-        for (int i : indexes(name)) {
+        return setBlob(indexes(name), value);
+    }
+
+    private QueryBuilder setBlob(int[] indexes, byte[] value) throws SQLException {
+        for (int i : indexes) {
             try {
                 if (value == null) {
                     statement.setNull(i, Types.BLOB);
@@ -255,37 +385,121 @@ public final class QueryBuilder {
         return this;
     }
 
-    public QueryBuilder setObject(Object object) throws SQLException {
+    private static Getter createGetter(Method method) throws IllegalAccessException {
 
-        Method[] methods = object.getClass().getMethods();
+        String name = method.getName().substring(3);
+        Class<?> type = method.getReturnType();
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
 
-        for (Method method : methods) {
-            if (method.getName().startsWith("get") && method.getParameterTypes().length == 0) {
-                String name = method.getName().substring(3);
-                try {
-                    if (method.getReturnType().equals(boolean.class)) {
-                        setBoolean(name, (Boolean) method.invoke(object));
-                    } else if (method.getReturnType().equals(int.class)) {
-                        setInteger(name, (Integer) method.invoke(object));
-                    } else if (method.getReturnType().equals(long.class)) {
-                        setLong(name, (Long) method.invoke(object), name.endsWith("Id"));
-                    } else if (method.getReturnType().equals(double.class)) {
-                        setDouble(name, (Double) method.invoke(object));
-                    } else if (method.getReturnType().equals(String.class)) {
-                        setString(name, (String) method.invoke(object));
-                    } else if (method.getReturnType().equals(Date.class)) {
-                        setDate(name, (Date) method.invoke(object));
-                    } else if (method.getReturnType().equals(byte[].class)) {
-                        setBlob(name, (byte[]) method.invoke(object));
+        if (type.equals(boolean.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(boolean.class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setBoolean(indexes, (boolean) getter.invokeExact(object));
+                }
+            };
+        } else if (type.equals(int.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(int.class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setInteger(indexes, (int) getter.invokeExact(object));
+                }
+            };
+        } else if (type.equals(long.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(long.class, Object.class));
+            final boolean nullIfZero = name.endsWith("Id");
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setLong(indexes, (long) getter.invokeExact(object), nullIfZero);
+                }
+            };
+        } else if (type.equals(double.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(double.class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setDouble(indexes, (double) getter.invokeExact(object));
+                }
+            };
+        } else if (type.equals(String.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(String.class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setString(indexes, (String) getter.invokeExact(object));
+                }
+            };
+        } else if (type.equals(Date.class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(Date.class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setDate(indexes, (Date) getter.invokeExact(object));
+                }
+            };
+        } else if (type.equals(byte[].class)) {
+            final MethodHandle getter = handle.asType(MethodType.methodType(byte[].class, Object.class));
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    builder.setBlob(indexes, (byte[]) getter.invokeExact(object));
+                }
+            };
+        } else {
+            final MethodHandle getter = handle.asType(MethodType.methodType(Object.class, Object.class));
+            final boolean map = type.equals(Map.class);
+            return new Getter(name) {
+                @Override
+                protected void bind(QueryBuilder builder, int[] indexes, Object object) throws Throwable {
+                    Object value = getter.invokeExact(object);
+                    if (map && Context.getConfig().getBoolean("database.xml")) {
+                        builder.setString(indexes, MiscFormatter.toXmlString((Map) value));
+                    } else if (map && value != null) {
+                        builder.setString(indexes, getAttributesCodec().encode((Map<?, ?>) value));
                     } else {
-                        if (method.getReturnType().equals(Map.class)
-                                && Context.getConfig().getBoolean("database.xml")) {
-                            setString(name, MiscFormatter.toXmlString((Map) method.invoke(object)));
-                        } else {
-                            setString(name, Context.getObjectMapper().writeValueAsString(method.invoke(object)));
-                        }
+                        builder.setString(indexes, Context.getObjectMapper().writeValueAsString(value));
+                    }
+                }
+            };
+        }
+    }
+
+    private static Getter[] getGetters(Class<?> clazz) {
+        Getter[] getters = GETTERS.get(clazz);
+        if (getters == null) {
+            List<Getter> list = new ArrayList<>();
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().startsWith("get") && method.getParameterTypes().length == 0) {
+                    try {
+                        list.add(createGetter(method));
+                    } catch (IllegalAccessException error) {
+                        Log.warning(error);
                     }
-                } catch (IllegalAccessException | InvocationTargetException | JsonProcessingException error) {
+                }
+            }
+            getters = list.toArray(new Getter[list.size()]);
+            GETTERS.put(clazz, getters);
+        }
+        return getters;
+    }
+
+    public QueryBuilder setObject(Object object) throws SQLException {
+
+        if (indexMap == null) {
+            return this;
+        }
+
+        for (Getter getter : getGetters(object.getClass())) {
+            int[] indexes = indexMap.get(getter.name);
+            if (indexes != null) {
+                try {
+                    getter.bind(this, indexes, object);
+                } catch (SQLException | Error error) {
+                    throw error;
+                } catch (Throwable error) {
                     Log.warning(error);
                 }
             }
@@ -294,8 +508,12 @@ public final class QueryBuilder {
         return this;
     }
 
-    private interface ResultSetProcessor<T> {
-        void process(T object, ResultSet resultSet) throws SQLException;
+    public interface ResultHandler<T> {
+        void handle(T object) throws SQLException;
+    }
+
+    private interface ResultSetProcessor {
+        void process(Object object, ResultSet resultSet) throws Throwable;
     }
 
     public <T> T executeQuerySingle(Class<T> clazz) throws SQLException {
@@ -307,163 +525,230 @@ public final class QueryBuilder {
         }
     }
 
-    private <T> void addProcessors(
-            List<ResultSetProcessor<T>> processors,
-            final Class<?> parameterType, final Method method, final String name) {
+    private static ResultSetProcessor createProcessor(Method method, final int index) throws IllegalAccessException {
+
+        final Class<?> parameterType = method.getParameterTypes()[0];
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
 
         if (parameterType.equals(boolean.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getBoolean(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
-                    }
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getBoolean(index));
                 }
-            });
+            };
         } else if (parameterType.equals(int.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, int.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getInt(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
-                    }
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getInt(index));
                 }
-            });
+            };
         } else if (parameterType.equals(long.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, long.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getLong(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
-                    }
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getLong(index));
                 }
-            });
+            };
         } else if (parameterType.equals(double.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, double.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getDouble(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
-                    }
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getDouble(index));
                 }
-            });
+            };
         } else if (parameterType.equals(String.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, String.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getString(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
-                    }
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getString(index));
                 }
-            });
+            };
         } else if (parameterType.equals(Date.class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            // Model setters copy dates, so the timestamp can be passed as is
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, Date.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        Timestamp timestamp = resultSet.getTimestamp(name);
-                        if (timestamp != null) {
-                            method.invoke(object, new Date(timestamp.getTime()));
-                        }
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    Timestamp timestamp = resultSet.getTimestamp(index);
+                    if (timestamp != null) {
+                        setter.invokeExact(object, (Date) timestamp);
                     }
                 }
-            });
+            };
         } else if (parameterType.equals(byte[].class)) {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, byte[].class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    try {
-                        method.invoke(object, resultSet.getBytes(name));
-                    } catch (IllegalAccessException | InvocationTargetException error) {
-                        Log.warning(error);
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    setter.invokeExact(object, resultSet.getBytes(index));
+                }
+            };
+        } else if (parameterType.equals(Map.class)) {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, Map.class));
+            return new ResultSetProcessor() {
+                @Override
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    String value = resultSet.getString(index);
+                    if (value != null && !value.isEmpty()) {
+                        setter.invokeExact(object, BINARY_CODEC.decode(value));
                     }
                 }
-            });
+            };
         } else {
-            processors.add(new ResultSetProcessor<T>() {
+            final MethodHandle setter = handle.asType(MethodType.methodType(void.class, Object.class, Object.class));
+            return new ResultSetProcessor() {
                 @Override
-                public void process(T object, ResultSet resultSet) throws SQLException {
-                    String value = resultSet.getString(name);
+                public void process(Object object, ResultSet resultSet) throws Throwable {
+                    String value = resultSet.getString(index);
                     if (value != null && !value.isEmpty()) {
-                        try {
-                            method.invoke(object, Context.getObjectMapper().readValue(value, parameterType));
-                        } catch (InvocationTargetException | IllegalAccessException | IOException error) {
-                            Log.warning(error);
+                        setter.invokeExact(object, Context.getObjectMapper().readValue(value, parameterType));
+                    }
+                }
+            };
+        }
+    }
+
+    private static final List<Class<?>> COLUMN_TYPES = Arrays.<Class<?>>asList(
+            boolean.class, int.class, long.class, double.class, String.class, Date.class, byte[].class, Map.class);
+
+    /**
+     * Returns setters by lower case property name. If a setter is overloaded, the only overload taking a type that
+     * maps directly to a column is used; when there is no such single overload, the property is not mapped.
+     */
+    private static Map<String, Method> getSetters(Class<?> clazz) {
+        Map<String, Method> setters = SETTERS.get(clazz);
+        if (setters == null) {
+            setters = new HashMap<>();
+            Set<String> ambiguous = new HashSet<>();
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().startsWith("set") && method.getParameterTypes().length == 1) {
+                    String name = method.getName().substring(3).toLowerCase();
+                    Method other = setters.get(name);
+                    if (other == null) {
+                        if (!ambiguous.contains(name)) {
+                            setters.put(name, method);
+                        }
+                    } else {
+                        boolean direct = COLUMN_TYPES.contains(method.getParameterTypes()[0]);
+                        boolean otherDirect = COLUMN_TYPES.contains(other.getParameterTypes()[0]);
+                        if (direct == otherDirect) {
+                            setters.remove(name);
+                            ambiguous.add(name);
+                            Log.warning("Ambiguous setter " + clazz.getSimpleName() + "." + method.getName());
+                        } else if (direct) {
+                            setters.put(name, method);
                         }
                     }
                 }
-            });
+            }
+            SETTERS.put(clazz, setters);
         }
+        return setters;
     }
 
-    public <T> Collection<T> executeQuery(Class<T> clazz) throws SQLException {
-        List<T> result = new LinkedList<>();
+    private ResultPlan getResultPlan(Class<?> clazz, ResultSetMetaData resultMetaData) throws SQLException {
 
-        if (query != null) {
+        Map<String, ResultPlan> plans = RESULT_PLANS.get(clazz);
+        if (plans == null) {
+            plans = new ConcurrentHashMap<>();
+            RESULT_PLANS.put(clazz, plans);
+        }
 
+        int columnCount = resultMetaData.getColumnCount();
+        ResultPlan plan = plans.get(query);
+        if (plan == null || plan.columnCount != columnCount) {
             try {
+                Map<String, Method> setters = new HashMap<>(getSetters(clazz));
+                List<ResultSetProcessor> processors = new ArrayList<>();
+                for (int i = 1; i <= columnCount; i++) {
+                    Method method = setters.remove(resultMetaData.getColumnLabel(i).toLowerCase());
+                    if (method != null) {
+                        processors.add(createProcessor(method, i));
+                    }
+                }
+                MethodHandle constructor = MethodHandles.publicLookup()
+                        .findConstructor(clazz, MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(Object.class));
+                plan = new ResultPlan(
+                        columnCount, constructor, processors.toArray(new ResultSetProcessor[processors.size()]));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException(e);
+            }
+            plans.put(query, plan);
+        }
+        return plan;
+    }
 
-                try (ResultSet resultSet = statement.executeQuery()) {
-
-                    ResultSetMetaData resultMetaData = resultSet.getMetaData();
+    public <T> Collection<T> executeQuery(Class<T> clazz) throws SQLException {
+        final List<T> result = new LinkedList<>();
+        executeQuery(clazz, 0, new ResultHandler<T>() {
+            @Override
+            public void handle(T object) {
+                result.add(object);
+            }
+        });
+        return result;
+    }
 
-                    List<ResultSetProcessor<T>> processors = new LinkedList<>();
+    /**
+     * Pass each row to the handler as soon as it is read instead of collecting the whole result. A non-zero fetch
+     * size is passed to the driver and the query runs outside of auto-commit, which some drivers require to use a
+     * cursor instead of reading the whole result set into memory.
+     */
+    public <T> void executeQuery(Class<T> clazz, int fetchSize, ResultHandler<T> handler) throws SQLException {
 
-                    Method[] methods = clazz.getMethods();
+        if (query != null) {
 
-                    for (final Method method : methods) {
-                        if (method.getName().startsWith("set") && method.getParameterTypes().length == 1) {
+            try {
 
-                            final String name = method.getName().substring(3);
+                if (fetchSize != 0) {
+                    connection.setAutoCommit(false);
+                    statement.setFetchSize(fetchSize);
+                }
 
-                            // Check if column exists
-                            boolean column = false;
-                            for (int i = 1; i <= resultMetaData.getColumnCount(); i++) {
-                                if (name.equalsIgnoreCase(resultMetaData.getColumnLabel(i))) {
-                                    column = true;
-                                    break;
-                                }
-                            }
-                            if (!column) {
-                                continue;
-                            }
+                try (ResultSet resultSet = statement.executeQuery()) {
 
-                            addProcessors(processors, method.getParameterTypes()[0], method, name);
-                        }
-                    }
+                    ResultPlan plan = getResultPlan(clazz, resultSet.getMetaData());
 
                     while (resultSet.next()) {
+                        T object;
                         try {
-                            T object = clazz.newInstance();
-                            for (ResultSetProcessor<T> processor : processors) {
+                            object = clazz.cast(plan.constructor.invokeExact());
+                        } catch (Throwable e) {
+                            throw new IllegalArgumentException(e);
+                        }
+                        for (ResultSetProcessor processor : plan.processors) {
+                            try {
                                 processor.process(object, resultSet);
+                            } catch (SQLException | Error error) {
+                                throw error;
+                            } catch (Throwable error) {
+                                Log.warning(error);
                             }
-                            result.add(object);
-                        } catch (InstantiationException | IllegalAccessException e) {
-                            throw new IllegalArgumentException();
                         }
+                        handler.handle(object);
                     }
                 }
 
             } finally {
-                statement.close();
-                connection.close();
+                try {
+                    if (fetchSize != 0) {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                } finally {
+                    statement.close();
+                    connection.close();
+                }
             }
         }
-
-        return result;
     }
 
     public long executeUpdate() throws SQLException {
@@ -476,6 +761,8 @@ public final class QueryBuilder {
                     if (resultSet.next()) {
                         return resultSet.getLong(1);
                     }
+                } else {
+                    return statement.getUpdateCount();
                 }
             } finally {
                 statement.close();
@@ -485,4 +772,59 @@ public final class QueryBuilder {
         return 0;
     }
 
+    public QueryBuilder addBatch() throws SQLException {
+        if (query != null) {
+            try {
+                statement.addBatch();
+                batchSize++;
+            } catch (SQLException error) {
+                statement.close();
+                connection.close();
+                throw error;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Execute all added rows in a single transaction. Returns generated keys in the order rows were added, or null if
+     * the driver did not report a key for every row, in which case the transaction is rolled back.
+     */
+    public long[] executeBatch() throws SQLException {
+
+        long[] result = new long[batchSize];
+
+        if (query != null) {
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    statement.executeBatch();
+                    if (returnGeneratedKeys) {
+                        int count = 0;
+                        try (ResultSet resultSet = statement.getGeneratedKeys()) {
+                            while (resultSet.next() && count < result.length) {
+                                result[count++] = resultSet.getLong(1);
+                            }
+                        }
+                        if (count < result.length) {
+                            connection.rollback();
+                            return null;
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException error) {
+                    connection.rollback();
+                    throw error;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                statement.close();
+                connection.close();
+            }
+        }
+        return result;
+    }
+
 }
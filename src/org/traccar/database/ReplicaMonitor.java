@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.database;
+
+import org.traccar.helper.Log;
+import org.traccar.model.Position;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Estimates how far the replica is behind the primary database. The newest position id of the primary is sampled
+ * periodically, and the replica lag is the age of the oldest sample the replica has not caught up with yet. While the
+ * replica is stalled the number of samples is limited by dropping the second oldest one, which keeps the lag estimate
+ * at or above the real value.
+ */
+public class ReplicaMonitor extends TimerTask {
+
+    public static final long DEFAULT_INTERVAL = 5000;
+    public static final long DEFAULT_MAX_LAG = 30000;
+
+    private static final int MAX_SAMPLES = 1000;
+
+    private static final class Sample {
+
+        private final long time;
+        private final long positionId;
+
+        private Sample(long time, long positionId) {
+            this.time = time;
+            this.positionId = positionId;
+        }
+
+    }
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final String query;
+    private final long maxLag;
+
+    private final LinkedList<Sample> samples = new LinkedList<>();
+
+    private volatile long lag = -1;
+
+    public ReplicaMonitor(DataSource primary, DataSource replica, String query, long interval, long maxLag) {
+        this.primary = primary;
+        this.replica = replica;
+        this.query = query;
+        this.maxLag = maxLag;
+        run();
+        new Timer("replica-monitor", true).schedule(this, interval, interval);
+    }
+
+    /**
+     * Replica lag in milliseconds, or -1 if the replica is not reachable.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    public void setFailed() {
+        lag = -1;
+    }
+
+    /**
+     * Lag is measured in insert time, so a query may also use a lagging replica if it only reads rows with a server
+     * time before the lag. Pass null for queries bounded by another time, such as the fix time of buffered history.
+     */
+    public boolean isAvailable(Date serverTimeTo) {
+        long currentLag = lag;
+        return currentLag >= 0 && (currentLag <= maxLag
+                || serverTimeTo != null && serverTimeTo.getTime() < System.currentTimeMillis() - currentLag);
+    }
+
+    private static long getLastPositionId(DataSource dataSource, String query) throws SQLException {
+        Position position = QueryBuilder.create(dataSource, query).executeQuerySingle(Position.class);
+        return position != null ? position.getId() : 0;
+    }
+
+    @Override
+    public synchronized void run() {
+        long now = System.currentTimeMillis();
+        try {
+            long primaryId = getLastPositionId(primary, query);
+            if (samples.isEmpty() || samples.getLast().positionId < primaryId) {
+                if (samples.size() >= MAX_SAMPLES) {
+                    samples.remove(1);
+                }
+                samples.add(new Sample(now, primaryId));
+            }
+        } catch (SQLException error) {
+            Log.warning(error);
+            return;
+        }
+        try {
+            long replicaId = getLastPositionId(replica, query);
+            long result = 0;
+            for (Iterator<Sample> iterator = samples.iterator(); iterator.hasNext();) {
+                Sample sample = iterator.next();
+                if (sample.positionId <= replicaId) {
+                    iterator.remove();
+                } else {
+                    result = now - sample.time;
+                    break;
+                }
+            }
+            lag = result;
+        } catch (SQLException error) {
+            Log.warning(error);
+            lag = -1;
+        }
+    }
+
+}
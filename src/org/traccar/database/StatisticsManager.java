@@ -15,19 +15,28 @@
  */
 package org.traccar.database;
 
+import org.traccar.BaseProtocolDecoder;
 import org.traccar.Context;
+import org.traccar.DatagramExecutionHandler;
+import org.traccar.MeteredBufferFactory;
+import org.traccar.OrderedExecutionHandler;
+import org.traccar.helper.ExpiringCache;
 import org.traccar.helper.Log;
 import org.traccar.model.Statistics;
 
+import javax.sql.DataSource;
 import java.sql.SQLException;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class StatisticsManager {
 
     private static final int SPLIT_MODE = Calendar.DAY_OF_MONTH;
+    private static final int MAX_UNKNOWN_ADDRESSES = 10000;
 
     private int lastUpdate = Calendar.getInstance().get(SPLIT_MODE);
 
@@ -37,6 +46,118 @@ public class StatisticsManager {
     private int requests;
     private int messagesReceived;
     private int messagesStored;
+    private long positionsDeleted;
+
+    private int unknownMessages;
+    private Map<String, Integer> unknownProtocols = new HashMap<>();
+    private Map<String, Integer> unknownAddresses = new HashMap<>();
+
+    private static void addWaitTime(Statistics statistics, String prefix, DataSource dataSource) {
+        if (dataSource instanceof MeteredDataSource) {
+            MeteredDataSource meteredDataSource = (MeteredDataSource) dataSource;
+            long connections = meteredDataSource.getConnections();
+            if (connections > 0) {
+                statistics.set(prefix + "Connections", connections);
+                statistics.set(prefix + "WaitAverage", meteredDataSource.getWaitTime() / connections);
+                statistics.set(prefix + "WaitMax", meteredDataSource.getMaxWaitTime());
+            }
+            meteredDataSource.resetMetrics();
+        }
+    }
+
+    private static void addExecutionTime(
+            Statistics statistics, String prefix, OrderedExecutionHandler executionHandler) {
+        if (executionHandler != null) {
+            long processed = executionHandler.getProcessed();
+            if (processed > 0) {
+                statistics.set(prefix + "QueueSize", executionHandler.getQueueSize());
+                statistics.set(prefix + "WaitAverage", executionHandler.getWaitTime() / processed);
+                statistics.set(prefix + "WaitMax", executionHandler.getMaxWaitTime());
+                statistics.set(prefix + "ProcessAverage", executionHandler.getProcessTime() / processed);
+                statistics.set(prefix + "ProcessMax", executionHandler.getMaxProcessTime());
+            }
+            if (executionHandler.getPaused() > 0) {
+                statistics.set(prefix + "Paused", executionHandler.getPaused());
+            }
+            if (executionHandler.getDropped() > 0) {
+                statistics.set(prefix + "Dropped", executionHandler.getDropped());
+            }
+            executionHandler.resetMetrics();
+        }
+    }
+
+    private static void addSpool(Statistics statistics, PositionSpool spool) {
+        if (spool != null) {
+            statistics.set("spoolBacklog", spool.getBacklog());
+            if (spool.getDropped() > 0) {
+                statistics.set("spoolDropped", spool.getDropped());
+            }
+            if (spool.getQuarantined() > 0) {
+                statistics.set("spoolQuarantined", spool.getQuarantined());
+            }
+            spool.resetMetrics();
+        }
+    }
+
+    private static void addCacheMetrics(Statistics statistics, String prefix, ExpiringCache.Metrics metrics) {
+        if (metrics.getHits() + metrics.getMisses() > 0) {
+            statistics.set(prefix + "Hits", metrics.getHits());
+            statistics.set(prefix + "Misses", metrics.getMisses());
+            statistics.set(prefix + "Evictions", metrics.getEvictions());
+        }
+        metrics.reset();
+    }
+
+    private static void addSweepTime(Statistics statistics, ConnectionManager connectionManager) {
+        if (connectionManager != null) {
+            long sweeps = connectionManager.getSweeps();
+            if (sweeps > 0) {
+                statistics.set("statusSweepAverage", connectionManager.getSweepTime() / sweeps);
+                statistics.set("statusSweepMax", connectionManager.getMaxSweepTime());
+            }
+            if (connectionManager.getExpired() > 0) {
+                statistics.set("statusExpired", connectionManager.getExpired());
+            }
+            connectionManager.resetMetrics();
+        }
+    }
+
+    private static void addLoginTime(Statistics statistics, PermissionsManager permissionsManager) {
+        if (permissionsManager != null) {
+            long logins = permissionsManager.getLogins();
+            if (logins > 0) {
+                statistics.set("loginAverageMicros", permissionsManager.getLoginTime() / logins);
+                statistics.set("loginMaxMicros", permissionsManager.getMaxLoginTime());
+            }
+            permissionsManager.resetMetrics();
+            addCacheMetrics(statistics, "loginCache", permissionsManager.getLoginCacheMetrics());
+        }
+    }
+
+    private static void increment(Map<String, Integer> counters, String key) {
+        Integer count = counters.get(key);
+        counters.put(key, count != null ? count + 1 : 1);
+    }
+
+    private void addUnknownDevices(Statistics statistics) {
+        if (unknownMessages > 0) {
+            statistics.set("unknownMessages", unknownMessages);
+            for (Map.Entry<String, Integer> entry : unknownProtocols.entrySet()) {
+                statistics.set(entry.getKey() + "UnknownMessages", entry.getValue());
+            }
+            statistics.set("unknownAddresses", unknownAddresses.size());
+            Map.Entry<String, Integer> topAddress = null;
+            for (Map.Entry<String, Integer> entry : unknownAddresses.entrySet()) {
+                if (topAddress == null || entry.getValue() > topAddress.getValue()) {
+                    topAddress = entry;
+                }
+            }
+            if (topAddress != null) {
+                statistics.set("unknownTopAddress", topAddress.getKey());
+                statistics.set("unknownTopAddressMessages", topAddress.getValue());
+            }
+        }
+    }
 
     private void checkSplit() {
         int currentUpdate = Calendar.getInstance().get(SPLIT_MODE);
@@ -48,6 +169,36 @@ public class StatisticsManager {
             statistics.setRequests(requests);
             statistics.setMessagesReceived(messagesReceived);
             statistics.setMessagesStored(messagesStored);
+            if (positionsDeleted > 0) {
+                statistics.set("positionsDeleted", positionsDeleted);
+            }
+            if (Context.getPositionRetentionTask() != null
+                    && Context.getPositionRetentionTask().getLastRunDuration() > 0) {
+                statistics.set("retentionDuration", Context.getPositionRetentionTask().getLastRunDuration());
+            }
+            addWaitTime(statistics, "database", Context.getDataManager().getDataSource());
+            addWaitTime(statistics, "replica", Context.getDataManager().getReplicaDataSource());
+            PositionBatchWriter positionBatchWriter = Context.getDataManager().getPositionBatchWriter();
+            if (positionBatchWriter != null) {
+                statistics.set("positionWriterQueueSize", positionBatchWriter.getQueueSize());
+            }
+            addExecutionTime(statistics, "execution", Context.getExecutionHandler());
+            for (DatagramExecutionHandler handler : DatagramExecutionHandler.getHandlers()) {
+                addExecutionTime(statistics, handler.getProtocol() + "Datagram", handler);
+            }
+            addSpool(statistics, Context.getPositionSpool());
+            addSweepTime(statistics, Context.getConnectionManager());
+            addLoginTime(statistics, Context.getPermissionsManager());
+            addUnknownDevices(statistics);
+            if (Context.getDeviceManager() != null) {
+                addCacheMetrics(statistics, "unknownCache", Context.getDeviceManager().getUnknownDevicesMetrics());
+            }
+            addCacheMetrics(statistics, "sessionCache", BaseProtocolDecoder.getSessionCacheMetrics());
+            if (MeteredBufferFactory.getAllocations() > 0) {
+                statistics.set("bufferAllocations", MeteredBufferFactory.getAllocations());
+                statistics.set("bufferBytes", MeteredBufferFactory.getAllocatedBytes());
+                MeteredBufferFactory.resetMetrics();
+            }
 
             try {
                 Context.getDataManager().addStatistics(statistics);
@@ -60,6 +211,10 @@ public class StatisticsManager {
             requests = 0;
             messagesReceived = 0;
             messagesStored = 0;
+            positionsDeleted = 0;
+            unknownMessages = 0;
+            unknownProtocols.clear();
+            unknownAddresses.clear();
             lastUpdate = currentUpdate;
         }
     }
@@ -85,4 +240,19 @@ public class StatisticsManager {
         }
     }
 
+    public synchronized void registerPositionsDeleted(long count) {
+        checkSplit();
+        positionsDeleted += count;
+    }
+
+    public synchronized void registerUnknownDevice(String protocol, String address) {
+        checkSplit();
+        unknownMessages += 1;
+        increment(unknownProtocols, protocol);
+        if (address != null && (unknownAddresses.size() < MAX_UNKNOWN_ADDRESSES
+                || unknownAddresses.containsKey(address))) {
+            increment(unknownAddresses, address);
+        }
+    }
+
 }
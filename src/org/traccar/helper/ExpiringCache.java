@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Anton Tananaev (anton@traccar.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.traccar.helper;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent map with a size limit and expiration of entries that were not read for the given time. Expired
+ * entries are removed on access and by a sweep that runs when the cache grows over its limit or the timeout passes;
+ * if the sweep does not bring the size under the limit, least recently used entries are removed.
+ */
+public class ExpiringCache<K, V> {
+
+    /**
+     * Counters that can be shared by several caches.
+     */
+    public static class Metrics {
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public void reset() {
+            hits.set(0);
+            misses.set(0);
+            evictions.set(0);
+        }
+
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private volatile long accessTime;
+
+        private Entry(V value, long accessTime) {
+            this.value = value;
+            this.accessTime = accessTime;
+        }
+
+    }
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long timeout;
+    private final Metrics metrics;
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    public ExpiringCache(int maxSize, long timeout, Metrics metrics) {
+        this.maxSize = maxSize;
+        this.timeout = timeout;
+        this.metrics = metrics;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            long now = System.currentTimeMillis();
+            if (now - entry.accessTime <= timeout) {
+                entry.accessTime = now;
+                metrics.hits.incrementAndGet();
+                return entry.value;
+            }
+            if (entries.remove(key, entry)) {
+                metrics.evictions.incrementAndGet();
+            }
+        }
+        metrics.misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(K key, V value) {
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry<>(value, now));
+        if (entries.size() > maxSize || now - lastSweep > timeout) {
+            sweep(key, now);
+        }
+    }
+
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes expired entries and, if still over the limit, exactly enough of the least recently used ones to get a
+     * quarter below it. Entries accessed in the same millisecond are removed in any order, but never the entry that
+     * is being put.
+     */
+    private void sweep(K key, long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lastSweep = now;
+            for (Iterator<Entry<V>> iterator = entries.values().iterator(); iterator.hasNext();) {
+                if (now - iterator.next().accessTime > timeout) {
+                    iterator.remove();
+                    metrics.evictions.incrementAndGet();
+                }
+            }
+            if (entries.size() > maxSize) {
+                long[] accessTimes = new long[entries.size()];
+                int count = 0;
+                for (Entry<V> entry : entries.values()) {
+                    if (count < accessTimes.length) {
+                        accessTimes[count++] = entry.accessTime;
+                    }
+                }
+                Arrays.sort(accessTimes, 0, count);
+                int excess = count - maxSize * 3 / 4;
+                if (excess > 0) {
+                    long threshold = accessTimes[excess - 1];
+                    excess = trim(key, threshold, false, excess);
+                    trim(key, threshold, true, excess);
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    private int trim(K key, long threshold, boolean inclusive, int count) {
+        for (Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+                count > 0 && iterator.hasNext();) {
+            Map.Entry<K, Entry<V>> entry = iterator.next();
+            long accessTime = entry.getValue().accessTime;
+            if ((accessTime < threshold || inclusive && accessTime == threshold) && !key.equals(entry.getKey())) {
+                iterator.remove();
+                metrics.evictions.incrementAndGet();
+                count--;
+            }
+        }
+        return count;
+    }
+
+}
@@ -16,7 +16,6 @@
 package org.traccar.protocol;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.socket.DatagramChannel;
 import org.traccar.BaseProtocolDecoder;
@@ -55,7 +54,7 @@ public class TeltonikaSitaProtocolDecoder extends BaseProtocolDecoder {
         DeviceSession deviceSession = getDeviceSession(channel, remoteAddress, imei);
 
         if (channel != null) {
-            ChannelBuffer response = ChannelBuffers.directBuffer(1);
+            ChannelBuffer response = createBuffer(channel, 1);
             if (deviceSession != null) {
                 response.writeByte(1);
             } else {
@@ -373,13 +372,13 @@ public class TeltonikaSitaProtocolDecoder extends BaseProtocolDecoder {
 
         if (channel != null) {
             if (channel instanceof DatagramChannel) {
-                ChannelBuffer response = ChannelBuffers.directBuffer(5);
+                ChannelBuffer response = createBuffer(channel, 5);
                 response.writeShort(3);
                 response.writeShort(packetId);
                 response.writeByte(0x02);
                 channel.write(response, remoteAddress);
             } else {
-                ChannelBuffer response = ChannelBuffers.directBuffer(4);
+                ChannelBuffer response = createBuffer(channel, 4);
                 response.writeInt(count);
                 channel.write(response);
             }
@@ -25,8 +25,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.joda.time.DateTime;
 import org.jxls.area.Area;
@@ -37,6 +37,7 @@ import org.jxls.transform.Transformer;
 import org.jxls.transform.poi.PoiTransformer;
 import org.jxls.util.TransformerFactory;
 import org.traccar.Context;
+import org.traccar.database.QueryBuilder;
 import org.traccar.model.Device;
 import org.traccar.model.Event;
 import org.traccar.model.Geofence;
@@ -48,21 +49,50 @@ public final class Events {
     private Events() {
     }
 
+    private static final class EventFilter implements QueryBuilder.ResultHandler<Event> {
+
+        private final long userId;
+        private final Collection<String> types;
+        private final boolean all;
+        private final Collection<Event> result;
+        private final Map<Long, String> geofenceNames;
+
+        private EventFilter(
+                long userId, Collection<String> types, Collection<Event> result, Map<Long, String> geofenceNames) {
+            this.userId = userId;
+            this.types = types;
+            this.all = types.isEmpty() || types.contains(Event.ALL_EVENTS);
+            this.result = result;
+            this.geofenceNames = geofenceNames;
+        }
+
+        @Override
+        public void handle(Event event) {
+            if (all || types.contains(event.getType())) {
+                long geofenceId = event.getGeofenceId();
+                if (geofenceId != 0) {
+                    if (!Context.getGeofenceManager().checkGeofence(userId, geofenceId)) {
+                        return;
+                    }
+                    if (geofenceNames != null) {
+                        Geofence geofence = Context.getGeofenceManager().getGeofence(geofenceId);
+                        if (geofence != null) {
+                            geofenceNames.put(geofenceId, geofence.getName());
+                        }
+                    }
+                }
+                result.add(event);
+            }
+        }
+
+    }
+
     public static Collection<Event> getObjects(long userId, Collection<Long> deviceIds, Collection<Long> groupIds,
             Collection<String> types, Date from, Date to) throws SQLException {
         ArrayList<Event> result = new ArrayList<>();
         for (long deviceId: ReportUtils.getDeviceList(deviceIds, groupIds)) {
             Context.getPermissionsManager().checkDevice(userId, deviceId);
-            Collection<Event> events = Context.getDataManager().getEvents(deviceId, from, to);
-            boolean all = types.isEmpty() || types.contains(Event.ALL_EVENTS);
-            for (Event event : events) {
-                if (all || types.contains(event.getType())) {
-                    long geofenceId = event.getGeofenceId();
-                    if (geofenceId == 0 || Context.getGeofenceManager().checkGeofence(userId, geofenceId)) {
-                       result.add(event);
-                    }
-                }
-            }
+            Context.getDataManager().getEvents(deviceId, from, to, new EventFilter(userId, types, result, null));
         }
         return result;
     }
@@ -75,26 +105,9 @@ public final class Events {
         HashMap<Long, String> geofenceNames = new HashMap<>();
         for (long deviceId: ReportUtils.getDeviceList(deviceIds, groupIds)) {
             Context.getPermissionsManager().checkDevice(userId, deviceId);
-            Collection<Event> events = Context.getDataManager().getEvents(deviceId, from.toDate(), to.toDate());
-            boolean all = types.isEmpty() || types.contains(Event.ALL_EVENTS);
-            for (Iterator<Event> iterator = events.iterator(); iterator.hasNext();) {
-                Event event = iterator.next();
-                if (all || types.contains(event.getType())) {
-                    long geofenceId = event.getGeofenceId();
-                    if (geofenceId != 0) {
-                        if (Context.getGeofenceManager().checkGeofence(userId, geofenceId)) {
-                            Geofence geofence = Context.getGeofenceManager().getGeofence(geofenceId);
-                            if (geofence != null) {
-                                geofenceNames.put(geofenceId, geofence.getName());
-                            }
-                        } else {
-                            iterator.remove();
-                        }
-                    }
-                } else {
-                    iterator.remove();
-                }
-            }
+            ArrayList<Event> events = new ArrayList<>();
+            Context.getDataManager().getEvents(
+                    deviceId, from.toDate(), to.toDate(), new EventFilter(userId, types, events, geofenceNames));
             DeviceReport deviceEvents = new DeviceReport();
             Device device = Context.getIdentityManager().getDeviceById(deviceId);
             deviceEvents.setDeviceName(device.getName());
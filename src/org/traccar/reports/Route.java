@@ -35,6 +35,7 @@ import org.jxls.transform.Transformer;
 import org.jxls.transform.poi.PoiTransformer;
 import org.jxls.util.TransformerFactory;
 import org.traccar.Context;
+import org.traccar.database.QueryBuilder;
 import org.traccar.model.Device;
 import org.traccar.model.Group;
 import org.traccar.model.Position;
@@ -47,12 +48,25 @@ public final class Route {
 
     public static Collection<Position> getObjects(long userId, Collection<Long> deviceIds, Collection<Long> groupIds,
             Date from, Date to) throws SQLException {
-        ArrayList<Position> result = new ArrayList<>();
-        for (long deviceId: ReportUtils.getDeviceList(deviceIds, groupIds)) {
+        final ArrayList<Position> result = new ArrayList<>();
+        getObjects(userId, deviceIds, groupIds, from, to, new QueryBuilder.ResultHandler<Position>() {
+            @Override
+            public void handle(Position position) {
+                result.add(position);
+            }
+        });
+        return result;
+    }
+
+    public static void getObjects(long userId, Collection<Long> deviceIds, Collection<Long> groupIds,
+            Date from, Date to, QueryBuilder.ResultHandler<Position> handler) throws SQLException {
+        Collection<Long> devices = ReportUtils.getDeviceList(deviceIds, groupIds);
+        for (long deviceId: devices) {
             Context.getPermissionsManager().checkDevice(userId, deviceId);
-            result.addAll(Context.getDataManager().getPositions(deviceId, from, to));
         }
-        return result;
+        for (long deviceId: devices) {
+            Context.getDataManager().getPositions(deviceId, from, to, handler);
+        }
     }
 
     public static void getExcel(OutputStream outputStream,
@@ -35,6 +35,7 @@ import org.jxls.transform.Transformer;
 import org.jxls.transform.poi.PoiTransformer;
 import org.jxls.util.TransformerFactory;
 import org.traccar.Context;
+import org.traccar.database.QueryBuilder;
 import org.traccar.model.Device;
 import org.traccar.model.Group;
 import org.traccar.model.Position;
@@ -96,8 +97,13 @@ public final class Trips {
 
         Collection<TripReport> result = new ArrayList<>();
 
-        ArrayList<Position> positions = new ArrayList<>(positionCollection);
-        if (positions != null && !positions.isEmpty()) {
+        ArrayList<Position> positions;
+        if (positionCollection instanceof ArrayList) {
+            positions = (ArrayList<Position>) positionCollection;
+        } else {
+            positions = new ArrayList<>(positionCollection);
+        }
+        if (!positions.isEmpty()) {
             int previousStartParkingIndex = 0;
             int startParkingIndex = -1;
             int previousEndParkingIndex = 0;
@@ -174,10 +180,17 @@ public final class Trips {
         boolean ignoreOdometer = Context.getDeviceManager()
                 .lookupAttributeBoolean(deviceId, "report.ignoreOdometer", false, true);
 
+        final ArrayList<Position> positions = new ArrayList<>();
+        Context.getDataManager().getPositions(deviceId, from, to, new QueryBuilder.ResultHandler<Position>() {
+            @Override
+            public void handle(Position position) {
+                positions.add(position);
+            }
+        });
+
         return detectTrips(
                 speedThreshold, minimalTripDistance, minimalTripDuration,
-                minimalParkingDuration, greedyParking, ignoreOdometer,
-                Context.getDataManager().getPositions(deviceId, from, to));
+                minimalParkingDuration, greedyParking, ignoreOdometer, positions);
     }
 
     public static Collection<TripReport> getObjects(long userId, Collection<Long> deviceIds, Collection<Long> groupIds,
@@ -17,6 +17,8 @@
 package org.traccar.web;
 
 import java.beans.Introspector;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
@@ -157,6 +159,14 @@ public class CsvBuilder {
         }
     }
 
+    /**
+     * Writes lines added so far and clears them, so long exports do not have to be kept in memory.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        writer.append(builder);
+        builder.setLength(0);
+    }
+
     public String build() {
         return builder.toString();
     }
@@ -0,0 +1,106 @@
+package org.traccar;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reports retained heap per idle connection of a protocol pipeline. Connections are opened over the in-memory
+ * transport and compared against the same number of connections with an empty pipeline, so the result covers the
+ * pipeline, its handlers and per-channel state, but not socket buffers. Run with
+ * {@code java -cp target/test-classes:target/classes:target/lib/* org.traccar.ConnectionMemoryHarness gt06 10000}
+ * and optionally a configuration file as the third argument.
+ */
+public final class ConnectionMemoryHarness extends BaseTest {
+
+    private static final ChannelPipelineFactory EMPTY_FACTORY = new ChannelPipelineFactory() {
+        @Override
+        public ChannelPipeline getPipeline() {
+            return Channels.pipeline();
+        }
+    };
+
+    // Empty pipelines log every discarded event
+    private static final Logger NETTY_LOGGER = Logger.getLogger("org.jboss.netty");
+
+    private ConnectionMemoryHarness() {
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static long measure(ChannelPipelineFactory pipelineFactory, int count) throws InterruptedException {
+        ChannelFactory serverFactory = new DefaultLocalServerChannelFactory();
+        ServerBootstrap serverBootstrap = new ServerBootstrap(serverFactory);
+        serverBootstrap.setPipelineFactory(pipelineFactory);
+        LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+        Channel serverChannel = serverBootstrap.bind(address);
+
+        ChannelFactory clientFactory = new DefaultLocalClientChannelFactory();
+        ClientBootstrap clientBootstrap = new ClientBootstrap(clientFactory);
+        clientBootstrap.setPipelineFactory(EMPTY_FACTORY);
+
+        List<Channel> channels = new ArrayList<>(count);
+        long before = usedMemory();
+        for (int i = 0; i < count; i++) {
+            channels.add(clientBootstrap.connect(serverChannel.getLocalAddress()).awaitUninterruptibly().getChannel());
+        }
+        long after = usedMemory();
+
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        serverChannel.close().awaitUninterruptibly();
+        serverFactory.releaseExternalResources();
+        clientFactory.releaseExternalResources();
+
+        return (after - before) / count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        NETTY_LOGGER.setLevel(Level.OFF);
+
+        String name = args.length > 0 ? args[0] : "gt06";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        if (args.length > 2) {
+            Context.getConfig().load(args[2]);
+        }
+
+        String className = "org.traccar.protocol." + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        BaseProtocol protocol = (BaseProtocol) Class.forName(className + "Protocol").newInstance();
+        List<TrackerServer> servers = new ArrayList<>();
+        protocol.initTrackerServers(servers);
+
+        for (TrackerServer server : servers) {
+            if (!server.isConnectionless()) {
+                long empty = measure(EMPTY_FACTORY, count);
+                long total = measure(server.getPipelineFactory(), count);
+                System.out.println(name + ": " + total + " bytes per connection, "
+                        + (total - empty) + " bytes in pipeline");
+            }
+        }
+
+        GlobalTimer.release();
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.traccar;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MeteredBufferFactoryTest {
+
+    @Test
+    public void testDirect() {
+
+        MeteredBufferFactory.resetMetrics();
+        MeteredBufferFactory bufferFactory = new MeteredBufferFactory(
+                MeteredBufferFactory.TYPE_DIRECT, ByteOrder.LITTLE_ENDIAN, 1024);
+
+        ChannelBuffer first = bufferFactory.getBuffer(4);
+        ChannelBuffer second = bufferFactory.getBuffer(4);
+        first.writeInt(1);
+        second.writeInt(2);
+
+        assertTrue(first.isDirect());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, first.order());
+        assertEquals(1, first.getInt(0));
+        assertEquals(2, second.getInt(0));
+        assertEquals(1, first.getByte(0));
+
+        assertEquals(2, MeteredBufferFactory.getAllocations());
+        assertEquals(8, MeteredBufferFactory.getAllocatedBytes());
+
+    }
+
+    @Test
+    public void testHeap() {
+
+        MeteredBufferFactory bufferFactory = new MeteredBufferFactory(
+                MeteredBufferFactory.TYPE_HEAP, ByteOrder.BIG_ENDIAN, 1024);
+
+        ChannelBuffer buffer = bufferFactory.getBuffer(2);
+        buffer.writeShort(1);
+
+        assertTrue(!buffer.isDirect());
+        assertEquals(0, buffer.getByte(0));
+
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.traccar.database;
+
+import org.traccar.BaseTest;
+import org.traccar.Config;
+import org.traccar.model.Device;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+
+/**
+ * Runs tests against an embedded H2 database with the default queries and schema. Tests run from the project
+ * directory, so the default configuration and changelog are found.
+ */
+public class BaseDatabaseTest extends BaseTest {
+
+    protected static Config createConfig(String name, String... entries) throws IOException {
+        File file = File.createTempFile(name, ".xml");
+        try {
+            try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+                writer.println("<?xml version='1.0' encoding='UTF-8'?>");
+                writer.println("<!DOCTYPE properties SYSTEM 'http://java.sun.com/dtd/properties.dtd'>");
+                writer.println("<properties>");
+                writer.println("<entry key='config.default'>./setup/default.xml</entry>");
+                writer.println("<entry key='database.driver'>org.h2.Driver</entry>");
+                writer.println("<entry key='database.url'>jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1</entry>");
+                writer.println("<entry key='database.user'>sa</entry>");
+                writer.println("<entry key='database.password'></entry>");
+                for (int i = 0; i < entries.length; i += 2) {
+                    writer.println("<entry key='" + entries[i] + "'>" + entries[i + 1] + "</entry>");
+                }
+                writer.println("</properties>");
+            }
+            Config config = new Config();
+            config.load(file.getPath());
+            return config;
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    protected static DataManager createDataManager(String name, String... entries) throws Exception {
+        return new DataManager(createConfig(name, entries));
+    }
+
+    protected static Device addDevice(DataManager dataManager, String uniqueId) throws SQLException {
+        Device device = new Device();
+        device.setName(uniqueId);
+        device.setUniqueId(uniqueId);
+        dataManager.addDevice(device);
+        return device;
+    }
+
+}
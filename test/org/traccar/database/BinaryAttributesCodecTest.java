@@ -0,0 +1,49 @@
+package org.traccar.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.traccar.BaseTest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BinaryAttributesCodecTest extends BaseTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+
+        BinaryAttributesCodec codec = new BinaryAttributesCodec(new JsonAttributesCodec());
+
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("ignition", true);
+        attributes.put("sat", 7);
+        attributes.put("odometer", 123456789012L);
+        attributes.put("power", 12.5);
+        attributes.put("battery", 3.91);
+        attributes.put("custom", -42);
+        attributes.put("raw", "7e0102");
+
+        String encoded = codec.encode(attributes);
+        Assert.assertTrue(BinaryAttributesCodec.isEncoded(encoded));
+        Assert.assertTrue(encoded.length() < new JsonAttributesCodec().encode(attributes).length());
+        Assert.assertEquals(attributes, codec.decode(encoded));
+
+    }
+
+    @Test
+    public void testJsonFallback() throws Exception {
+
+        BinaryAttributesCodec codec = new BinaryAttributesCodec(new JsonAttributesCodec());
+
+        Map<String, Object> attributes = new LinkedHashMap<>();
+        attributes.put("nested", new LinkedHashMap<>(attributes));
+
+        String encoded = codec.encode(attributes);
+        Assert.assertFalse(BinaryAttributesCodec.isEncoded(encoded));
+        Assert.assertEquals(attributes, codec.decode(encoded));
+
+        Assert.assertEquals(7, codec.decode("{\"sat\":7}").get("sat"));
+
+    }
+
+}
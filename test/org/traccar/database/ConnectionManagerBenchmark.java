@@ -0,0 +1,116 @@
+package org.traccar.database;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traccar.Context;
+import org.traccar.model.Device;
+import org.traccar.model.Event;
+import org.traccar.model.Position;
+import org.traccar.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures live update fan-out to listeners of users linked to the reporting device. Compare throughput for one and
+ * for all cores with
+ * {@code java -cp target/test-classes:target/classes:target/lib/* org.openjdk.jmh.Main ConnectionManagerBenchmark -t 1}
+ * and {@code -t <cores>}. Run from the project directory, so the default configuration and schema are found.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionManagerBenchmark {
+
+    private static final int USERS = 100;
+    private static final int DEVICES_PER_USER = 10;
+    private static final int LISTENERS_PER_USER = 2;
+
+    private File configFile;
+    private long[] deviceIds;
+
+    private static final class EmptyListener implements ConnectionManager.UpdateListener {
+
+        @Override
+        public void onUpdateDevice(Device device) {
+        }
+
+        @Override
+        public void onUpdatePosition(Position position) {
+        }
+
+        @Override
+        public void onUpdateEvent(Event event) {
+        }
+
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        configFile = File.createTempFile("benchmark", ".xml");
+        try (PrintWriter writer = new PrintWriter(configFile, "UTF-8")) {
+            writer.println("<?xml version='1.0' encoding='UTF-8'?>");
+            writer.println("<!DOCTYPE properties SYSTEM 'http://java.sun.com/dtd/properties.dtd'>");
+            writer.println("<properties>");
+            writer.println("<entry key='config.default'>./setup/default.xml</entry>");
+            writer.println("<entry key='database.driver'>org.h2.Driver</entry>");
+            writer.println("<entry key='database.url'>jdbc:h2:mem:fanout;DB_CLOSE_DELAY=-1</entry>");
+            writer.println("<entry key='database.user'>sa</entry>");
+            writer.println("<entry key='database.password'></entry>");
+            writer.println("</properties>");
+        }
+        Context.init(new String[] {configFile.getPath()});
+
+        DataManager dataManager = Context.getDataManager();
+        deviceIds = new long[USERS * DEVICES_PER_USER];
+        for (int i = 0; i < USERS; i++) {
+            User user = new User();
+            user.setName("user" + i);
+            user.setEmail("user" + i);
+            user.setPassword("user" + i);
+            dataManager.addUser(user);
+            for (int j = 0; j < LISTENERS_PER_USER; j++) {
+                Context.getConnectionManager().addListener(user.getId(), new EmptyListener());
+            }
+            for (int j = 0; j < DEVICES_PER_USER; j++) {
+                Device device = new Device();
+                device.setName("device" + i + "-" + j);
+                device.setUniqueId("device" + i + "-" + j);
+                dataManager.addDevice(device);
+                dataManager.linkDevice(user.getId(), device.getId());
+                deviceIds[i * DEVICES_PER_USER + j] = device.getId();
+            }
+        }
+        Context.getPermissionsManager().refreshPermissions();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (!configFile.delete()) {
+            throw new IOException("Failed to delete " + configFile);
+        }
+    }
+
+    @Benchmark
+    public void updatePosition() {
+        Position position = new Position();
+        position.setDeviceId(deviceIds[ThreadLocalRandom.current().nextInt(deviceIds.length)]);
+        Context.getConnectionManager().updatePosition(position);
+    }
+
+}
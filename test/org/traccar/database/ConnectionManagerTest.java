@@ -0,0 +1,202 @@
+package org.traccar.database;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.traccar.Context;
+import org.traccar.model.Device;
+import org.traccar.model.Position;
+
+import java.net.SocketAddress;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ConnectionManagerTest extends BaseDatabaseTest {
+
+    private IdentityManager previousIdentityManager;
+
+    private final Map<Long, String> statuses = new ConcurrentHashMap<>();
+    private volatile Runnable statusHook;
+
+    /**
+     * Returns a new instance on every lookup, like the device cache does after a device is updated.
+     */
+    private final IdentityManager identityManager = new IdentityManager() {
+
+        @Override
+        public Device getDeviceById(long id) {
+            Device device = new Device() {
+                @Override
+                public void setStatus(String status) {
+                    Runnable hook = statusHook;
+                    if (hook != null) {
+                        statusHook = null;
+                        hook.run();
+                    }
+                    super.setStatus(status);
+                    statuses.put(getId(), status);
+                }
+            };
+            device.setId(id);
+            return device;
+        }
+
+        @Override
+        public Device getDeviceByUniqueId(String uniqueId) {
+            return null;
+        }
+
+        @Override
+        public Position getLastPosition(long deviceId) {
+            return null;
+        }
+
+        @Override
+        public boolean isLatestPosition(Position position) {
+            return true;
+        }
+
+    };
+
+    @Before
+    public void setIdentityManager() {
+        previousIdentityManager = Context.getIdentityManager();
+        Context.init(identityManager);
+    }
+
+    @After
+    public void restoreIdentityManager() {
+        Context.init(previousIdentityManager);
+    }
+
+    private static final class TestChannel extends AbstractChannel {
+
+        private TestChannel() {
+            super(null, null, Channels.pipeline(), new AbstractChannelSink() {
+                @Override
+                public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) {
+                }
+            });
+        }
+
+        @Override
+        public ChannelConfig getConfig() {
+            return new DefaultChannelConfig();
+        }
+
+        @Override
+        public boolean isBound() {
+            return true;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+    }
+
+    private static ConnectionManager createConnectionManager() throws Exception {
+        return new ConnectionManager(
+                createConfig("connections", "status.timeout", "0", "status.sweepInterval", "3600"));
+    }
+
+    @Test
+    public void testReportDuringSweep() throws Exception {
+        final ConnectionManager connectionManager = createConnectionManager();
+        connectionManager.updateDevice(1, Device.STATUS_ONLINE, new Date());
+        Thread.sleep(10);
+
+        final Thread report = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.updateDevice(1, Device.STATUS_ONLINE, new Date());
+            }
+        });
+        statusHook = new Runnable() {
+            @Override
+            public void run() {
+                report.start();
+                try {
+                    report.join(100);
+                } catch (InterruptedException error) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        connectionManager.sweep();
+        report.join();
+
+        Assert.assertEquals(1, connectionManager.getExpired());
+        Assert.assertEquals(Device.STATUS_ONLINE, statuses.get(1L));
+
+        Thread.sleep(10);
+        connectionManager.sweep();
+        Assert.assertEquals(2, connectionManager.getExpired());
+        Assert.assertEquals(Device.STATUS_UNKNOWN, statuses.get(1L));
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        ConnectionManager connectionManager = createConnectionManager();
+        TestChannel oldChannel = new TestChannel();
+        TestChannel newChannel = new TestChannel();
+
+        connectionManager.addActiveDevice(1, null, oldChannel, null);
+        connectionManager.addActiveDevice(1, null, newChannel, null);
+
+        connectionManager.removeActiveDevice(oldChannel);
+        Assert.assertSame(newChannel, connectionManager.getActiveDevice(1).getChannel());
+        Assert.assertNull(statuses.get(1L));
+
+        connectionManager.removeActiveDevice(newChannel);
+        Assert.assertNull(connectionManager.getActiveDevice(1));
+        Assert.assertEquals(Device.STATUS_OFFLINE, statuses.get(1L));
+
+        statuses.clear();
+        connectionManager.removeActiveDevice(newChannel);
+        connectionManager.removeActiveDevice(oldChannel);
+        Assert.assertTrue(statuses.isEmpty());
+    }
+
+    @Test
+    public void testSharedChannel() throws Exception {
+        ConnectionManager connectionManager = createConnectionManager();
+        TestChannel sharedChannel = new TestChannel();
+        TestChannel otherChannel = new TestChannel();
+
+        connectionManager.addActiveDevice(1, null, sharedChannel, null);
+        connectionManager.addActiveDevice(2, null, sharedChannel, null);
+        connectionManager.addActiveDevice(3, null, sharedChannel, null);
+        connectionManager.addActiveDevice(2, null, sharedChannel, null);
+        connectionManager.addActiveDevice(3, null, otherChannel, null);
+
+        connectionManager.removeActiveDevice(sharedChannel);
+        Assert.assertNull(connectionManager.getActiveDevice(1));
+        Assert.assertNull(connectionManager.getActiveDevice(2));
+        Assert.assertEquals(Device.STATUS_OFFLINE, statuses.get(1L));
+        Assert.assertEquals(Device.STATUS_OFFLINE, statuses.get(2L));
+        Assert.assertSame(otherChannel, connectionManager.getActiveDevice(3).getChannel());
+        Assert.assertNull(statuses.get(3L));
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.traccar.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.traccar.Config;
+import org.traccar.model.Device;
+import org.traccar.model.Group;
+
+public class DeviceManagerTest extends BaseDatabaseTest {
+
+    private static final String ATTRIBUTE = "speedLimit";
+
+    private static Group createGroup(long id, String value) {
+        Group group = new Group();
+        group.setId(id);
+        group.setName("group");
+        if (value != null) {
+            group.set(ATTRIBUTE, value);
+        }
+        return group;
+    }
+
+    private static Device createDevice(long id, long groupId, String value) {
+        Device device = new Device();
+        device.setId(id);
+        device.setName("device");
+        device.setUniqueId("attributes");
+        device.setGroupId(groupId);
+        if (value != null) {
+            device.set(ATTRIBUTE, value);
+        }
+        return device;
+    }
+
+    @Test
+    public void testAttributeChanges() throws Exception {
+        Config config = createConfig("deviceAttributes", "deviceManager.lookupGroupsAttribute", "true");
+        DeviceManager deviceManager = new DeviceManager(new DataManager(config), config);
+
+        Group group = createGroup(0, "10");
+        deviceManager.addGroup(group);
+        Device device = createDevice(0, group.getId(), null);
+        deviceManager.addDevice(device);
+        long deviceId = device.getId();
+
+        Assert.assertEquals("10", deviceManager.lookupAttributeString(deviceId, ATTRIBUTE, null, true));
+
+        deviceManager.updateGroup(createGroup(group.getId(), "20"));
+        Assert.assertEquals("20", deviceManager.lookupAttributeString(deviceId, ATTRIBUTE, null, true));
+
+        deviceManager.updateDevice(createDevice(deviceId, group.getId(), "30"));
+        Assert.assertEquals("30", deviceManager.lookupAttributeString(deviceId, ATTRIBUTE, null, true));
+
+        deviceManager.updateDevice(createDevice(deviceId, group.getId(), null));
+        Assert.assertEquals("20", deviceManager.lookupAttributeString(deviceId, ATTRIBUTE, null, true));
+
+        deviceManager.removeGroup(group.getId());
+        Assert.assertEquals("none", deviceManager.lookupAttributeString(deviceId, ATTRIBUTE, "none", true));
+    }
+
+}
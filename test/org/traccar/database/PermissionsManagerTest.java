@@ -0,0 +1,162 @@
+package org.traccar.database;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import org.traccar.Context;
+import org.traccar.model.Device;
+import org.traccar.model.Group;
+import org.traccar.model.User;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class PermissionsManagerTest extends BaseDatabaseTest {
+
+    @AfterClass
+    public static void resetDeviceManager() {
+        Context.init((DeviceManager) null);
+    }
+
+    private static Group addGroup(DeviceManager deviceManager, long parentId) throws SQLException {
+        Group group = new Group();
+        group.setName("group");
+        group.setGroupId(parentId);
+        deviceManager.addGroup(group);
+        return group;
+    }
+
+    private static long addDevice(DeviceManager deviceManager, String uniqueId, long groupId) throws SQLException {
+        Device device = new Device();
+        device.setName(uniqueId);
+        device.setUniqueId(uniqueId);
+        device.setGroupId(groupId);
+        deviceManager.addDevice(device);
+        return device.getId();
+    }
+
+    private static long addUser(DataManager dataManager, String name) throws SQLException {
+        User user = new User();
+        user.setName(name);
+        user.setEmail(name + "@example.com");
+        user.setPassword(name);
+        dataManager.addUser(user);
+        return user.getId();
+    }
+
+    private static void assertRefreshed(
+            PermissionsManager permissionsManager, PermissionsManager refreshed, long[] userIds, long[] deviceIds) {
+        refreshed.refreshPermissions();
+        for (long userId : userIds) {
+            Assert.assertEquals(refreshed.getGroupPermissions(userId), permissionsManager.getGroupPermissions(userId));
+            Assert.assertEquals(
+                    refreshed.getDevicePermissions(userId), permissionsManager.getDevicePermissions(userId));
+        }
+        for (long deviceId : deviceIds) {
+            Assert.assertEquals(refreshed.getDeviceUsers(deviceId), permissionsManager.getDeviceUsers(deviceId));
+        }
+    }
+
+    @Test
+    public void testIncrementalLinks() throws Exception {
+        DataManager dataManager = createDataManager("permissions");
+        DeviceManager deviceManager = new DeviceManager(dataManager);
+        Context.init(deviceManager);
+
+        long parentId = addGroup(deviceManager, 0).getId();
+        long childId = addGroup(deviceManager, parentId).getId();
+        long otherId = addGroup(deviceManager, 0).getId();
+
+        long parentDeviceId = addDevice(deviceManager, "parent", parentId);
+        long childDeviceId = addDevice(deviceManager, "child", childId);
+        long otherDeviceId = addDevice(deviceManager, "other", otherId);
+        long freeDeviceId = addDevice(deviceManager, "free", 0);
+        long[] deviceIds = {parentDeviceId, childDeviceId, otherDeviceId, freeDeviceId};
+
+        long firstUserId = addUser(dataManager, "first");
+        long secondUserId = addUser(dataManager, "second");
+        long thirdUserId = addUser(dataManager, "third");
+        long[] userIds = {firstUserId, secondUserId, thirdUserId};
+
+        PermissionsManager permissionsManager = new PermissionsManager(dataManager);
+        PermissionsManager refreshed = new PermissionsManager(dataManager);
+
+        permissionsManager.linkGroup(firstUserId, parentId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(parentId, childId)),
+                permissionsManager.getGroupPermissions(firstUserId));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(parentDeviceId, childDeviceId)),
+                permissionsManager.getDevicePermissions(firstUserId));
+
+        permissionsManager.linkDevice(firstUserId, childDeviceId);
+        permissionsManager.linkDevice(firstUserId, freeDeviceId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+
+        permissionsManager.linkDevice(secondUserId, childDeviceId);
+        permissionsManager.linkGroup(secondUserId, childId);
+        permissionsManager.linkGroup(thirdUserId, otherId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(firstUserId, secondUserId)),
+                permissionsManager.getDeviceUsers(childDeviceId));
+
+        permissionsManager.unlinkGroup(firstUserId, parentId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(childDeviceId, freeDeviceId)),
+                permissionsManager.getDevicePermissions(firstUserId));
+        Assert.assertTrue(permissionsManager.getDeviceUsers(parentDeviceId).isEmpty());
+
+        permissionsManager.unlinkDevice(secondUserId, childDeviceId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        Assert.assertTrue(permissionsManager.getDevicePermissions(secondUserId).contains(childDeviceId));
+
+        permissionsManager.unlinkGroup(secondUserId, childId);
+        permissionsManager.unlinkDevice(firstUserId, childDeviceId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        Assert.assertTrue(permissionsManager.getDeviceUsers(childDeviceId).isEmpty());
+        Assert.assertTrue(permissionsManager.getGroupPermissions(secondUserId).isEmpty());
+
+        permissionsManager.unlinkDevice(firstUserId, freeDeviceId);
+        permissionsManager.unlinkGroup(thirdUserId, otherId);
+        assertRefreshed(permissionsManager, refreshed, userIds, deviceIds);
+        for (long deviceId : deviceIds) {
+            Assert.assertEquals(Collections.emptySet(), permissionsManager.getDeviceUsers(deviceId));
+        }
+    }
+
+    @Test
+    public void testLoginPasswordChange() throws Exception {
+        DataManager dataManager = createDataManager("permissionsLogin");
+        Context.init(new DeviceManager(dataManager));
+        PermissionsManager permissionsManager = new PermissionsManager(dataManager);
+
+        User user = new User();
+        user.setName("login");
+        user.setEmail("login@example.com");
+        user.setPassword("old");
+        permissionsManager.addUser(user);
+
+        Assert.assertEquals(user.getId(), permissionsManager.login("login@example.com", "old").getId());
+        Assert.assertEquals(user.getId(), permissionsManager.login("login@example.com", "old").getId());
+
+        User update = new User();
+        update.setId(user.getId());
+        update.setName("login");
+        update.setEmail("login@example.com");
+        update.setPassword("new");
+        permissionsManager.updateUser(update);
+
+        Assert.assertNull(permissionsManager.login("login@example.com", "old"));
+        Assert.assertEquals(user.getId(), permissionsManager.login("login@example.com", "new").getId());
+
+        update = new User();
+        update.setId(user.getId());
+        update.setName("renamed");
+        update.setEmail("login@example.com");
+        permissionsManager.updateUser(update);
+
+        Assert.assertEquals(user.getId(), permissionsManager.login("login@example.com", "new").getId());
+    }
+
+}
@@ -0,0 +1,158 @@
+package org.traccar.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.traccar.model.Position;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PositionBatchWriterTest extends BaseDatabaseTest {
+
+    private static final int POSITIONS = 5;
+
+    private static Position createPosition(long deviceId) {
+        Position position = new Position();
+        position.setProtocol("test");
+        position.setDeviceId(deviceId);
+        position.setTime(new Date());
+        return position;
+    }
+
+    private static List<Future<Long>> addPositions(
+            ExecutorService executor, final PositionBatchWriter writer, List<Position> positions) {
+        List<Future<Long>> results = new ArrayList<>();
+        for (final Position position : positions) {
+            results.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws SQLException {
+                    writer.addPosition(position);
+                    return position.getId();
+                }
+            }));
+        }
+        return results;
+    }
+
+    private static SQLException getError(Future<Long> result) throws InterruptedException {
+        try {
+            result.get();
+            return null;
+        } catch (ExecutionException e) {
+            return (SQLException) e.getCause();
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        DataManager dataManager = createDataManager("batch");
+        long deviceId = addDevice(dataManager, "batch").getId();
+        PositionBatchWriter writer = new PositionBatchWriter(dataManager, 10, 500, 100);
+
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < POSITIONS; i++) {
+            positions.add(createPosition(deviceId));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(POSITIONS);
+        Set<Long> ids = new HashSet<>();
+        for (Future<Long> result : addPositions(executor, writer, positions)) {
+            long id = result.get();
+            Assert.assertTrue(id > 0);
+            ids.add(id);
+        }
+        executor.shutdown();
+        writer.close(1000);
+
+        Assert.assertEquals(POSITIONS, ids.size());
+        Assert.assertEquals(POSITIONS, dataManager.getPositions(deviceId, new Date(0), new Date()).size());
+    }
+
+    @Test
+    public void testDataError() throws Exception {
+        DataManager dataManager = createDataManager("batchDataError");
+        long deviceId = addDevice(dataManager, "batchDataError").getId();
+        PositionBatchWriter writer = new PositionBatchWriter(dataManager, 10, 500, 100);
+
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < POSITIONS; i++) {
+            positions.add(createPosition(i == 0 ? deviceId + 1000 : deviceId));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(POSITIONS);
+        List<Future<Long>> results = addPositions(executor, writer, positions);
+        Assert.assertNotNull(getError(results.get(0)));
+        for (Future<Long> result : results.subList(1, results.size())) {
+            Assert.assertTrue(result.get() > 0);
+        }
+        executor.shutdown();
+        writer.close(1000);
+    }
+
+    @Test
+    public void testConnectionError() throws Exception {
+        final AtomicInteger rowInserts = new AtomicInteger();
+        DataManager dataManager = new DataManager(createConfig("batchConnectionError")) {
+            @Override
+            protected void insertPosition(Position position) throws SQLException {
+                rowInserts.incrementAndGet();
+                throw new SQLTransientConnectionException("Connection is not available");
+            }
+
+            @Override
+            protected void insertPositions(List<Position> positions) throws SQLException {
+                throw new SQLTransientConnectionException("Connection is not available");
+            }
+        };
+        PositionBatchWriter writer = new PositionBatchWriter(dataManager, 10, 500, 100);
+
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < POSITIONS; i++) {
+            positions.add(createPosition(1));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(POSITIONS);
+        for (Future<Long> result : addPositions(executor, writer, positions)) {
+            Assert.assertTrue(getError(result) instanceof SQLTransientConnectionException);
+        }
+        executor.shutdown();
+        writer.close(1000);
+
+        Assert.assertEquals(0, rowInserts.get());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        DataManager dataManager = createDataManager("batchClose");
+        long deviceId = addDevice(dataManager, "batchClose").getId();
+        PositionBatchWriter writer = new PositionBatchWriter(dataManager, 10, 0, 100);
+
+        List<Position> positions = new ArrayList<>();
+        for (int i = 0; i < POSITIONS * 20; i++) {
+            positions.add(createPosition(deviceId));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(POSITIONS);
+        List<Future<Long>> results = addPositions(executor, writer, positions);
+        writer.close(1000);
+        for (Future<Long> result : results) {
+            Assert.assertTrue(result.get(10, TimeUnit.SECONDS) > 0);
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(positions.size(), dataManager.getPositions(deviceId, new Date(0), new Date()).size());
+    }
+
+}
@@ -0,0 +1,187 @@
+package org.traccar.database;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.traccar.model.Position;
+import org.traccar.model.Server;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+public class PositionSpoolTest extends BaseDatabaseTest {
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Position createPosition(long deviceId) {
+        Position position = new Position();
+        position.setProtocol("test");
+        position.setDeviceId(deviceId);
+        position.setTime(new Date());
+        return position;
+    }
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static PositionSpool createSpool(DataManager dataManager, File directory) throws Exception {
+        return new PositionSpool(dataManager, directory, SEGMENT_SIZE, 1024 * 1024, 0, 10, 100);
+    }
+
+    private static void waitForReplay(PositionSpool spool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (spool.getBacklog() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, spool.getBacklog());
+    }
+
+    private static int getPositionsCount(DataManager dataManager, long deviceId) throws SQLException {
+        return dataManager.getPositions(deviceId, new Date(0), new Date()).size();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        DataManager dataManager = createDataManager("spoolReplay");
+        long deviceId = addDevice(dataManager, "spoolReplay").getId();
+        PositionSpool spool = createSpool(dataManager, folder.newFolder());
+
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(spool.addPosition(createPosition(deviceId)));
+        }
+        waitForReplay(spool);
+
+        Assert.assertEquals(25, getPositionsCount(dataManager, deviceId));
+        Assert.assertEquals(0, spool.getQuarantined());
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        DataManager dataManager = createDataManager("spoolQuarantine");
+        long deviceId = addDevice(dataManager, "spoolQuarantine").getId();
+        File directory = folder.newFolder();
+        PositionSpool spool = createSpool(dataManager, directory);
+
+        spool.addPosition(createPosition(deviceId));
+        spool.addPosition(createPosition(deviceId + 1000));
+        spool.addPosition(createPosition(deviceId));
+        waitForReplay(spool);
+
+        Assert.assertEquals(2, getPositionsCount(dataManager, deviceId));
+        Assert.assertEquals(1, spool.getQuarantined());
+        Assert.assertTrue(new File(directory, "quarantine.json").length() > 0);
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        DataManager unavailable = new DataManager(createConfig("spoolUnavailable")) {
+            @Override
+            protected void insertPosition(Position position) throws SQLException {
+                throw new SQLException("Database is down");
+            }
+
+            @Override
+            protected void insertPositions(List<Position> positions) throws SQLException {
+                throw new SQLException("Database is down");
+            }
+
+            @Override
+            public Server getServer() throws SQLException {
+                throw new SQLException("Database is down");
+            }
+        };
+        File directory = folder.newFolder();
+        PositionSpool spool = createSpool(unavailable, directory);
+
+        DataManager dataManager = createDataManager("spoolRecover");
+        long deviceId = addDevice(dataManager, "spoolRecover").getId();
+        for (int i = 0; i < 15; i++) {
+            spool.addPosition(createPosition(deviceId));
+        }
+        Assert.assertEquals(15, spool.getBacklog());
+
+        PositionSpool recovered = createSpool(dataManager, directory);
+        waitForReplay(recovered);
+
+        Assert.assertEquals(15, getPositionsCount(dataManager, deviceId));
+    }
+
+    @Test
+    public void testUndecodable() throws Exception {
+        File directory = folder.newFolder();
+        byte[] data = "{\"deviceId\":".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        File segment = new File(directory, String.format("%016d", 0) + ".spool");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(SEGMENT_SIZE);
+            file.writeInt(data.length);
+            file.writeInt((int) crc.getValue());
+            file.write(data);
+        }
+
+        PositionSpool spool = createSpool(createDataManager("spoolUndecodable"), directory);
+        waitForReplay(spool);
+
+        Assert.assertEquals(1, spool.getQuarantined());
+        Assert.assertEquals(data.length + 1, new File(directory, "quarantine.json").length());
+    }
+
+    @Test
+    public void testStampings() throws Exception {
+        final AtomicInteger available = new AtomicInteger();
+        final AtomicInteger stampings = new AtomicInteger();
+        DataManager dataManager = new DataManager(createConfig("spoolStampings")) {
+            @Override
+            protected void addStampings(Position position) throws SQLException {
+                if (available.get() == 0) {
+                    throw new SQLException("Database is down");
+                }
+                if (position.getDeviceId() == 0) {
+                    throw new IllegalArgumentException("Invalid stamping");
+                }
+                stampings.incrementAndGet();
+            }
+
+            @Override
+            public Server getServer() throws SQLException {
+                if (available.get() == 0) {
+                    throw new SQLException("Database is down");
+                }
+                return super.getServer();
+            }
+        };
+        File directory = folder.newFolder();
+        PositionSpool spool = createSpool(dataManager, directory);
+
+        long deviceId = addDevice(dataManager, "spoolStampings").getId();
+        for (int i = 0; i < 3; i++) {
+            Position position = createPosition(deviceId);
+            position.setId(i + 1);
+            spool.addPosition(position);
+        }
+        Position invalid = createPosition(0);
+        invalid.setId(4);
+        spool.addPosition(invalid);
+        Thread.sleep(300);
+        Assert.assertEquals(4, spool.getBacklog());
+
+        available.set(1);
+        waitForReplay(spool);
+
+        Assert.assertEquals(3, stampings.get());
+        Assert.assertEquals(1, spool.getQuarantined());
+        Assert.assertTrue(new File(directory, "stampings.json").length() > 0);
+        Assert.assertEquals(0, getPositionsCount(dataManager, deviceId));
+    }
+
+}
@@ -0,0 +1,165 @@
+package org.traccar.database;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.traccar.BaseTest;
+import org.traccar.model.Event;
+import org.traccar.model.Position;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares cached query metadata against the previous parse and reflection path, kept as {@link BaselineQueryBuilder},
+ * on embedded H2. Build test classes and run with
+ * {@code java -cp target/test-classes:target/classes:target/lib/* org.openjdk.jmh.Main QueryBuilderBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark extends BaseTest {
+
+    private static final String INSERT_POSITION = ""
+            + "INSERT INTO positions (deviceId, protocol, serverTime, deviceTime, fixTime, valid, latitude, longitude, "
+            + "altitude, speed, course, address, attributes, accuracy, network) "
+            + "VALUES (:deviceId, :protocol, :now, :deviceTime, :fixTime, :valid, :latitude, :longitude, "
+            + ":altitude, :speed, :course, :address, :attributes, :accuracy, :network)";
+
+    private static final String INSERT_EVENT = ""
+            + "INSERT INTO events (type, serverTime, deviceId, positionId, geofenceId, attributes) "
+            + "VALUES (:type, :serverTime, :deviceId, :positionId, :geofenceId, :attributes)";
+
+    private static final String UPDATE_LATEST_POSITION = "UPDATE devices SET positionId = :id WHERE id = :deviceId";
+
+    private static final String SELECT_POSITIONS = ""
+            + "SELECT * FROM positions WHERE deviceId = :deviceId AND fixTime BETWEEN :from AND :to ORDER BY fixTime";
+
+    private static final int ROWS = 100;
+
+    private JdbcDataSource dataSource;
+    private Connection keepAlive;
+    private Position position;
+    private Event event;
+
+    @Setup
+    public void setup() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+        keepAlive = dataSource.getConnection();
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("CREATE TABLE devices (id INT PRIMARY KEY, positionId INT)");
+            statement.execute("CREATE TABLE positions (id INT AUTO_INCREMENT PRIMARY KEY, protocol VARCHAR(128), "
+                    + "deviceId INT NOT NULL, serverTime TIMESTAMP NOT NULL, deviceTime TIMESTAMP NOT NULL, "
+                    + "fixTime TIMESTAMP NOT NULL, valid BIT NOT NULL, latitude DOUBLE NOT NULL, "
+                    + "longitude DOUBLE NOT NULL, altitude FLOAT NOT NULL, speed FLOAT NOT NULL, "
+                    + "course FLOAT NOT NULL, address VARCHAR(512), attributes VARCHAR(4000), "
+                    + "accuracy DOUBLE DEFAULT 0 NOT NULL, network VARCHAR(4000))");
+            statement.execute("CREATE TABLE events (id INT AUTO_INCREMENT PRIMARY KEY, type VARCHAR(128) NOT NULL, "
+                    + "serverTime TIMESTAMP NOT NULL, deviceId INT, positionId INT, geofenceId INT, "
+                    + "attributes VARCHAR(4000))");
+            statement.execute("INSERT INTO devices (id) VALUES (1)");
+        }
+
+        position = new Position();
+        position.setDeviceId(1);
+        position.setProtocol("teltonika");
+        position.setTime(new Date());
+        position.setValid(true);
+        position.setLatitude(40.85);
+        position.setLongitude(14.27);
+        position.set(Position.KEY_IGNITION, true);
+        position.set(Position.KEY_ODOMETER, 123456L);
+
+        event = new Event(Event.TYPE_IGNITION_ON, 1, 1);
+        event.set(Position.KEY_ALARM, Position.ALARM_GENERAL);
+
+        for (int i = 0; i < ROWS; i++) {
+            insertPositionCached();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        keepAlive.close();
+    }
+
+    @Benchmark
+    public long insertPositionCached() throws SQLException {
+        return QueryBuilder.create(dataSource, INSERT_POSITION, true)
+                .setDate("now", new Date())
+                .setObject(position)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long insertPositionBaseline() throws SQLException {
+        return BaselineQueryBuilder.create(dataSource, INSERT_POSITION, true)
+                .setDate("now", new Date())
+                .setObject(position)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long insertEventCached() throws SQLException {
+        return QueryBuilder.create(dataSource, INSERT_EVENT, true)
+                .setObject(event)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long insertEventBaseline() throws SQLException {
+        return BaselineQueryBuilder.create(dataSource, INSERT_EVENT, true)
+                .setObject(event)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long updateLatestPositionCached() throws SQLException {
+        return QueryBuilder.create(dataSource, UPDATE_LATEST_POSITION)
+                .setObject(position)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public long updateLatestPositionBaseline() throws SQLException {
+        return BaselineQueryBuilder.create(dataSource, UPDATE_LATEST_POSITION)
+                .setObject(position)
+                .executeUpdate();
+    }
+
+    @Benchmark
+    public Collection<Position> selectPositionsCached() throws SQLException {
+        return QueryBuilder.create(dataSource, SELECT_POSITIONS)
+                .setLong("deviceId", 1)
+                .setDate("from", new Date(0))
+                .setDate("to", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)))
+                .executeQuery(Position.class);
+    }
+
+    @Benchmark
+    public Collection<Position> selectPositionsBaseline() throws SQLException {
+        return BaselineQueryBuilder.create(dataSource, SELECT_POSITIONS)
+                .setLong("deviceId", 1)
+                .setDate("from", new Date(0))
+                .setDate("to", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)))
+                .executeQuery(Position.class);
+    }
+
+}
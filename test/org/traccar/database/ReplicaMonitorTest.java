@@ -0,0 +1,66 @@
+package org.traccar.database;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.traccar.model.Position;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+
+public class ReplicaMonitorTest extends BaseDatabaseTest {
+
+    private static void addPositions(DataManager dataManager, long deviceId, int count) throws SQLException {
+        for (int i = 0; i < count; i++) {
+            Position position = new Position();
+            position.setProtocol("test");
+            position.setDeviceId(deviceId);
+            position.setTime(new Date());
+            dataManager.addPosition(position);
+        }
+    }
+
+    private static int getPositionsCount(DataManager dataManager, long deviceId) throws SQLException {
+        return dataManager.getPositions(deviceId, new Date(0), new Date(System.currentTimeMillis() + 60000)).size();
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        DataManager replica = createDataManager("replicaSecondary");
+        long deviceId = addDevice(replica, "replica").getId();
+        addPositions(replica, deviceId, 1);
+
+        DataManager primary = createDataManager("replicaPrimary",
+                "database.replica.url", "jdbc:h2:mem:replicaSecondary;DB_CLOSE_DELAY=-1",
+                "database.replica.checkInterval", "3600000",
+                "database.replica.maxLag", "100");
+        Assert.assertEquals(deviceId, addDevice(primary, "replica").getId());
+        ReplicaMonitor monitor = primary.getReplicaMonitor();
+
+        monitor.run();
+        Assert.assertEquals(0, monitor.getLag());
+        Assert.assertEquals(1, getPositionsCount(primary, deviceId));
+
+        addPositions(primary, deviceId, 2);
+        monitor.run();
+        Thread.sleep(200);
+        monitor.run();
+        Assert.assertTrue(monitor.getLag() > 100);
+        Assert.assertEquals(2, getPositionsCount(primary, deviceId));
+
+        addPositions(replica, deviceId, 2);
+        monitor.run();
+        Assert.assertEquals(0, monitor.getLag());
+        Assert.assertEquals(3, getPositionsCount(primary, deviceId));
+
+        try (Connection connection = replica.getDataSource().getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        Assert.assertEquals(2, getPositionsCount(primary, deviceId));
+        Assert.assertEquals(-1, monitor.getLag());
+        Assert.assertEquals(2, getPositionsCount(primary, deviceId));
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.traccar.helper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void testExpiration() throws Exception {
+
+        ExpiringCache.Metrics metrics = new ExpiringCache.Metrics();
+        ExpiringCache<String, Integer> cache = new ExpiringCache<>(10, 50, metrics);
+
+        cache.put("a", 1);
+        assertEquals(1, (int) cache.get("a"));
+        assertNull(cache.get("b"));
+
+        Thread.sleep(100);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+
+        assertEquals(1, metrics.getHits());
+        assertEquals(2, metrics.getMisses());
+        assertEquals(1, metrics.getEvictions());
+
+    }
+
+    @Test
+    public void testSizeLimit() {
+
+        ExpiringCache.Metrics metrics = new ExpiringCache.Metrics();
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(100, 60000, metrics);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+
+        assertEquals(999, (int) cache.get(999));
+        assertTrue(metrics.getEvictions() >= 900);
+
+    }
+
+    @Test
+    public void testPutAtSizeLimit() {
+
+        ExpiringCache.Metrics metrics = new ExpiringCache.Metrics();
+        ExpiringCache<Integer, Integer> cache = new ExpiringCache<>(100, 60000, metrics);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertEquals(i, (int) cache.get(i));
+            assertTrue(cache.size() >= 75);
+        }
+
+        assertEquals(1000 - cache.size(), metrics.getEvictions());
+
+    }
+
+}
@@ -0,0 +1,34 @@
+package org.traccar.helper;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LongSetTest {
+
+    @Test
+    public void testSet() {
+
+        LongSet set = LongSet.of(Arrays.asList(5L, 1L, 3L, 1L));
+        assertEquals(3, set.size());
+        assertTrue(set.contains(3L));
+        assertFalse(set.contains(2L));
+        assertEquals(Arrays.asList(1L, 3L, 5L), Arrays.asList(set.toArray()));
+
+        LongSet larger = set.with(2);
+        assertTrue(larger.contains(2L));
+        assertFalse(set.contains(2L));
+        assertSame(larger, larger.with(2));
+
+        LongSet smaller = larger.without(1).without(2).without(3).without(5);
+        assertSame(LongSet.EMPTY, smaller);
+        assertSame(set, set.without(4));
+
+    }
+
+}